@@ -0,0 +1,121 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tracer.FrameBuffer;
+import tracer.Scene;
+import tracer.SphereKernel;
+import tracer.TracerCoordinator;
+import tracer.View;
+import tracer.V3;
+import tracer.objects.Material;
+import tracer.objects.Sphere;
+
+/**
+ * Renders complete frames. One operation is one primary ray, so the
+ * results read as rays per second and nanoseconds per ray. Reflection and
+ * shadow rays are included in the cost of their primary ray.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+	private static final int WIDTH = 800;
+	private static final int HEIGHT = 600;
+	private static final int RAYS = WIDTH * HEIGHT;
+
+	/**
+	 * "default" is the demo scene, "spheresN" adds N random spheres to it
+	 */
+	@Param({ "default", "spheres1000", "spheres10000" })
+	public String scene;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	/**
+	 * Sphere intersection kernel, see SphereKernel
+	 */
+	@Param({ "objects", "scalar", "vector" })
+	public String spheres;
+
+	/**
+	 * Trace primary rays in 2x2 packets
+	 */
+	@Param({ "true", "false" })
+	public boolean packets;
+
+	private TracerCoordinator tracer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		SphereKernel.select(spheres);
+
+		final Scene s = new Scene();
+		if (scene.startsWith("spheres")) {
+			addSpheres(s, Integer.parseInt(scene.substring("spheres".length())));
+		}
+
+		final View view = new View();
+		view.animate();
+
+		tracer = new TracerCoordinator(new FrameBuffer(WIDTH, HEIGHT), s, view, threads, TracerCoordinator.DEFAULT_TILE_SIZE);
+		tracer.setPacketTracing(packets);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tracer.close();
+	}
+
+	private static void addSpheres(Scene s, int count) {
+		final Random random = new Random(42);
+		final double radius = 2.0 / Math.sqrt(count);
+
+		for (int i = 0; i < count; i++) {
+			final V3 pos = new V3(random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5, random.nextDouble() * 4);
+			final Sphere sphere = new Sphere(pos, radius * (0.5 + random.nextDouble()));
+			sphere.setMaterial(new Material(random.nextInt(0xFFFFFF), random.nextInt(4) == 0 ? 1 : 0));
+			s.add(sphere);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(RAYS)
+	public void raysPerSecond() {
+		tracer.nextFrame();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@OperationsPerInvocation(RAYS)
+	public void nanosPerRay() {
+		tracer.nextFrame();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tracer.TraceResult;
+import tracer.V3;
+import tracer.objects.Material;
+import tracer.objects.Plane;
+import tracer.objects.Sphere;
+
+/**
+ * Per primitive intersection and shading cost, for one ray each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrimitiveBenchmark {
+	private Sphere sphere;
+	private Sphere mirror;
+	private Plane plane;
+
+	private V3 camera;
+	private V3 hitRay;
+	private V3 missRay;
+	private V3 light;
+
+	private V3 point;
+	private TraceResult result;
+
+	@Setup
+	public void setup() {
+		sphere = new Sphere(new V3(2, 0, 2), 2);
+		sphere.setMaterial(new Material(0xFF7FFF, 0));
+
+		mirror = new Sphere(new V3(2, 0, 2), 2);
+		mirror.setMaterial(new Material(0xFF7FFF, 1));
+
+		plane = new Plane(new V3(), new V3(0, 0, 1));
+		plane.setMin(new V3(-5, -5, -5));
+		plane.setMax(new V3(5, 5, 5));
+
+		camera = new V3(2, -10, 7);
+		hitRay = new V3(2, 0, 2).sub(camera);
+		missRay = new V3(-8, 0, 12).sub(camera);
+		light = new V3(-15, -3, 20);
+
+		point = new V3();
+		result = new TraceResult();
+	}
+
+	@Benchmark
+	public double sphereHit() {
+		return sphere.distanceToIntersection(camera, hitRay, hitRay.length2());
+	}
+
+	@Benchmark
+	public double sphereMiss() {
+		return sphere.distanceToIntersection(camera, missRay, missRay.length2());
+	}
+
+	@Benchmark
+	public double plane() {
+		return plane.distanceToIntersection(camera, hitRay, hitRay.length2());
+	}
+
+	@Benchmark
+	public long spherePhong() {
+		final double t = sphere.distanceToIntersection(camera, hitRay, hitRay.length2());
+		sphere.hit(point.set(camera), hitRay, light, t, result);
+		return result.color;
+	}
+
+	@Benchmark
+	public V3 sphereReflect() {
+		final double t = mirror.distanceToIntersection(camera, hitRay, hitRay.length2());
+		mirror.hit(point.set(camera), hitRay, light, t, result);
+		return result.nextRay;
+	}
+
+	@Benchmark
+	public long planeTexture() {
+		final double t = plane.distanceToIntersection(camera, hitRay, hitRay.length2());
+		plane.hit(point.set(camera), hitRay, light, t, result);
+		return result.color;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tracer.RGB;
+
+/**
+ * Packing, unpacking and shading of colours.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RGBBenchmark {
+	private int rgb = 0xFF7F3F;
+	private long spread = RGB.spread(0xFF7F3F);
+	private int brightness = 200;
+
+	@Benchmark
+	public long spread() {
+		return RGB.spread(rgb);
+	}
+
+	@Benchmark
+	public int compact() {
+		return RGB.compact(spread);
+	}
+
+	@Benchmark
+	public long shade() {
+		return RGB.shade(spread, brightness);
+	}
+
+	@Benchmark
+	public int shadeAndCompact() {
+		return RGB.compact(RGB.shade(RGB.spread(rgb), brightness));
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tracer.V3;
+
+/**
+ * Micro benchmarks for the vector operations used on every ray.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class V3Benchmark {
+	private V3 a;
+	private V3 b;
+	private V3 result;
+
+	@Setup
+	public void setup() {
+		a = new V3(0.3, -1.7, 2.2);
+		b = new V3(-4.1, 0.9, 0.5);
+		result = new V3();
+	}
+
+	@Benchmark
+	public double dot() {
+		return V3.dot(a, b);
+	}
+
+	@Benchmark
+	public double length() {
+		return a.length();
+	}
+
+	@Benchmark
+	public V3 addScaled() {
+		return result.set(a).add(b, 0.75);
+	}
+
+	@Benchmark
+	public V3 norm() {
+		return result.set(a).norm();
+	}
+
+	@Benchmark
+	public V3 cross() {
+		return V3.cross(a, b);
+	}
+
+	@Benchmark
+	public V3 rotate() {
+		return result.set(a).rotate(V3.cross(a, b).norm(), 0.02);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap the worker threads of a tracer allocate while frames
+ * are traced. Once warmed up the trace path should allocate nothing.
+ *
+ * The first frames allocate buffers, load classes and link call sites, so
+ * the warm up traces frames until the workers allocated nothing for
+ * SETTLED_FRAMES frames in a row. A trace path that allocates never
+ * settles.
+ *
+ * Run the check with -XX:TieredStopAtLevel=1, as the tests do. C2 keeps
+ * allocating on the workers long after the warm up: the thread that asks
+ * for the first C2 compile of a method resolves the unused string literals
+ * of its class, e.g. an exception message, and a deoptimization puts
+ * scalar replaced objects on the heap. When that happens depends on the
+ * frame size and the machine. C1 does neither, and as it doesn't replace
+ * any objects by scalars it also finds the allocations that escape
+ * analysis only hides.
+ */
+public class AllocationCheck {
+	/** Frames in a row without allocations that end the warm up. */
+	public static final int SETTLED_FRAMES = 10;
+
+	/** Frames after which the warm up gives up. */
+	public static final int MAX_WARMUP_FRAMES = 100;
+
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final long[] workerIds;
+
+	public AllocationCheck(TracerCoordinator tracer) {
+		threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		workerIds = tracer.getWorkerIds();
+	}
+
+	/**
+	 * @return the bytes the workers allocated while the frame ran
+	 */
+	public long measure(Runnable frame) {
+		final long[] before = threadBean.getThreadAllocatedBytes(workerIds);
+		frame.run();
+		final long[] after = threadBean.getThreadAllocatedBytes(workerIds);
+
+		long allocated = 0;
+		for (int i = 0; i < workerIds.length; i++) {
+			allocated += after[i] - before[i];
+		}
+		return allocated;
+	}
+
+	/**
+	 * Runs frames until the workers allocated nothing for SETTLED_FRAMES
+	 * frames in a row.
+	 *
+	 * @return the number of frames run
+	 * @throws IllegalStateException if the workers still allocate after
+	 *         MAX_WARMUP_FRAMES frames
+	 */
+	public int warmUp(Runnable frame) {
+		int settled = 0;
+		long allocated = 0;
+		for (int frames = 1; frames <= MAX_WARMUP_FRAMES; frames++) {
+			allocated = measure(frame);
+			settled = allocated == 0 ? settled + 1 : 0;
+			if (settled == SETTLED_FRAMES) {
+				return frames;
+			}
+		}
+		throw new IllegalStateException("The worker threads still allocate after " + MAX_WARMUP_FRAMES + " frames, "
+				+ allocated + " bytes in the last one");
+	}
+}
@@ -0,0 +1,802 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import tracer.objects.SceneObject;
+import tracer.objects.Sphere;
+
+/**
+ * A bounding volume hierarchy over the bounded scene objects. The tree is
+ * built with a binned surface area heuristic and then flattened into plain
+ * arrays, so traversal only touches the objects in the leaves a ray reaches.
+ *
+ * Nodes are stored depth first: the first child of an interior node is the
+ * node right after it, the second child is stored in offset[].
+ *
+ * Moving objects are handled by refitting: moved primitives are marked dirty
+ * and refit() only walks from their leaves up to the root. The tree gets
+ * worse the further objects move from where it was built, the ratio of the
+ * current to the original node surface area tells how much.
+ *
+ * Leaves holding only spheres are intersected by a SphereKernel from
+ * packed copies of the sphere data, unless packing is switched off.
+ */
+public class BoundingVolumeHierarchy {
+	private static final int BINS = 16;
+	private static final int MAX_LEAF_SIZE = 4;
+	//sphere kernels handle a whole run for little more than one sphere
+	private static final int MAX_PACKED_LEAF_SIZE = SphereKernel.MAX_RUN;
+	private static final double TRAVERSAL_COST = 1.0;
+	private static final double INTERSECTION_COST = 2.0;
+
+	/**
+	 * Stack depth needed for traversal, the SAH build stays well below it
+	 */
+	public static final int MAX_DEPTH = 64;
+
+	private final SceneObject[] primitives;
+
+	//min x, y, z then max x, y, z for every node
+	private final double[] bounds;
+	//leaf: index of the first primitive, interior: index of the second child
+	private final int[] offset;
+	//leaf: number of primitives, interior: 0
+	private final int[] count;
+	//interior: split axis, used to visit the nearer child first
+	private final byte[] axis;
+	private final int[] parent;
+	private int nodeCount;
+
+	//bounds of each primitive, in primitive order after the build
+	private double[] primBounds;
+	//leaf holding each primitive
+	private final int[] leafOf;
+	private final IdentityHashMap<SceneObject, Integer> slotOf;
+
+	private final int[] dirty;
+	private final boolean[] dirtyFlag;
+	private int dirtyCount;
+
+	private final double buildArea;
+	private double totalArea;
+
+	private final V3 min = new V3();
+	private final V3 max = new V3();
+
+	//null if spheres are intersected one by one
+	private final SphereKernel kernel;
+	private final PackedSpheres spheres;
+	private final boolean[] sphereLeaf;
+	private final int maxLeafSize;
+
+	//build time only
+	private double[] centroids;
+	private int[] order;
+
+	public BoundingVolumeHierarchy(List<SceneObject> objects) {
+		this(objects.toArray(new SceneObject[objects.size()]), snapshotBounds(objects));
+	}
+
+	/**
+	 * Builds the hierarchy from previously taken bounds, so the objects may
+	 * move while the build runs. Call refitAll() before using the result.
+	 * 
+	 * @param objectBounds bounds as returned by snapshotBounds()
+	 */
+	public BoundingVolumeHierarchy(SceneObject[] objects, double[] objectBounds) {
+		final int n = objects.length;
+
+		primitives = new SceneObject[n];
+		primBounds = objectBounds;
+		centroids = new double[n * 3];
+		order = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			centroids[i * 3] = (primBounds[i * 6] + primBounds[i * 6 + 3]) * 0.5;
+			centroids[i * 3 + 1] = (primBounds[i * 6 + 1] + primBounds[i * 6 + 4]) * 0.5;
+			centroids[i * 3 + 2] = (primBounds[i * 6 + 2] + primBounds[i * 6 + 5]) * 0.5;
+
+			order[i] = i;
+		}
+
+		kernel = SphereKernel.current();
+		maxLeafSize = kernel != null ? MAX_PACKED_LEAF_SIZE : MAX_LEAF_SIZE;
+
+		final int maxNodes = Math.max(1, 2 * n - 1);
+		bounds = new double[maxNodes * 6];
+		offset = new int[maxNodes];
+		count = new int[maxNodes];
+		axis = new byte[maxNodes];
+		parent = new int[maxNodes];
+		leafOf = new int[n];
+
+		if (n > 0) {
+			build(0, n, 0, -1);
+		}
+
+		final double[] sortedBounds = new double[n * 6];
+		slotOf = new IdentityHashMap<SceneObject, Integer>(n);
+
+		for (int i = 0; i < n; i++) {
+			primitives[i] = objects[order[i]];
+			System.arraycopy(primBounds, order[i] * 6, sortedBounds, i * 6, 6);
+			slotOf.put(primitives[i], i);
+		}
+
+		primBounds = sortedBounds;
+		centroids = null;
+		order = null;
+
+		sphereLeaf = new boolean[maxNodes];
+
+		if (kernel != null) {
+			spheres = new PackedSpheres(n);
+			for (int i = 0; i < n; i++) {
+				if (primitives[i] instanceof Sphere) {
+					spheres.set(i, (Sphere) primitives[i]);
+				}
+			}
+
+			for (int node = 0; node < nodeCount; node++) {
+				sphereLeaf[node] = count[node] > 0 && count[node] <= SphereKernel.MAX_RUN && onlySpheres(offset[node], count[node]);
+			}
+		} else {
+			spheres = null;
+		}
+
+		dirty = new int[n];
+		dirtyFlag = new boolean[n];
+
+		for (int node = 0; node < nodeCount; node++) {
+			totalArea += area(bounds, node * 6);
+		}
+		buildArea = totalArea;
+	}
+
+	private boolean onlySpheres(int first, int n) {
+		for (int i = first; i < first + n; i++) {
+			if (!(primitives[i] instanceof Sphere)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the current bounds of the objects, six values per object.
+	 */
+	public static double[] snapshotBounds(List<SceneObject> objects) {
+		final double[] result = new double[objects.size() * 6];
+		final V3 min = new V3();
+		final V3 max = new V3();
+
+		for (int i = 0; i < objects.size(); i++) {
+			readBounds(objects.get(i), result, i * 6, min, max);
+		}
+
+		return result;
+	}
+
+	private static void readBounds(SceneObject object, double[] result, int b, V3 min, V3 max) {
+		object.getBounds(min, max);
+
+		//pad a little so rays grazing an object don't miss its box by rounding
+		final double pad = 1E-9 * (1.0 + Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z)));
+
+		result[b] = min.x - pad;
+		result[b + 1] = min.y - pad;
+		result[b + 2] = min.z - pad;
+		result[b + 3] = max.x + pad;
+		result[b + 4] = max.y + pad;
+		result[b + 5] = max.z + pad;
+	}
+
+	public int size() {
+		return primitives.length;
+	}
+
+	/**
+	 * Remembers that an object has moved, its leaf is updated by the next
+	 * refit(). Objects that are not part of this hierarchy are ignored.
+	 */
+	public void markMoved(SceneObject object) {
+		final Integer slot = slotOf.get(object);
+
+		if (slot != null && !dirtyFlag[slot]) {
+			dirtyFlag[slot] = true;
+			dirty[dirtyCount++] = slot;
+		}
+	}
+
+	/**
+	 * Updates the boxes of all moved primitives and their ancestors. Stops
+	 * climbing as soon as a box doesn't change, so the cost depends on the
+	 * number of moved objects only.
+	 */
+	public void refit() {
+		for (int i = 0; i < dirtyCount; i++) {
+			final int slot = dirty[i];
+			dirtyFlag[slot] = false;
+
+			readPrimitive(slot);
+
+			int node = leafOf[slot];
+			while (node >= 0 && updateNodeBounds(node)) {
+				node = parent[node];
+			}
+		}
+
+		dirtyCount = 0;
+	}
+
+	/**
+	 * Reads the bounds of all primitives and refits every node.
+	 */
+	public void refitAll() {
+		for (int slot = 0; slot < primitives.length; slot++) {
+			dirtyFlag[slot] = false;
+			readPrimitive(slot);
+		}
+		dirtyCount = 0;
+
+		//children are always stored after their parents
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			updateNodeBounds(node);
+		}
+	}
+
+	private void readPrimitive(int slot) {
+		readBounds(primitives[slot], primBounds, slot * 6, min, max);
+
+		if (spheres != null && primitives[slot] instanceof Sphere) {
+			spheres.set(slot, (Sphere) primitives[slot]);
+		}
+	}
+
+	/**
+	 * @return current node surface area relative to the area right after the
+	 *         build, grows as refitted boxes get looser
+	 */
+	public double getDegradation() {
+		return buildArea > 0 ? totalArea / buildArea : 1.0;
+	}
+
+	/**
+	 * Recomputes the box of a node from its primitives or children.
+	 * 
+	 * @return true if the box has changed
+	 */
+	private boolean updateNodeBounds(int node) {
+		final int b = node * 6;
+
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, z0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE, z1 = -Double.MAX_VALUE;
+
+		final double[] source;
+		final int first;
+		final int n;
+
+		if (count[node] > 0) {
+			source = primBounds;
+			first = offset[node];
+			n = count[node];
+		} else {
+			source = bounds;
+			first = node + 1;
+			n = 1;
+		}
+
+		for (int i = first; i < first + n; i++) {
+			final int o = i * 6;
+			x0 = Math.min(x0, source[o]);
+			y0 = Math.min(y0, source[o + 1]);
+			z0 = Math.min(z0, source[o + 2]);
+			x1 = Math.max(x1, source[o + 3]);
+			y1 = Math.max(y1, source[o + 4]);
+			z1 = Math.max(z1, source[o + 5]);
+		}
+
+		if (count[node] == 0) {
+			final int o = offset[node] * 6;
+			x0 = Math.min(x0, bounds[o]);
+			y0 = Math.min(y0, bounds[o + 1]);
+			z0 = Math.min(z0, bounds[o + 2]);
+			x1 = Math.max(x1, bounds[o + 3]);
+			y1 = Math.max(y1, bounds[o + 4]);
+			z1 = Math.max(z1, bounds[o + 5]);
+		}
+
+		if (x0 == bounds[b] && y0 == bounds[b + 1] && z0 == bounds[b + 2] && x1 == bounds[b + 3] && y1 == bounds[b + 4] && z1 == bounds[b + 5]) {
+			return false;
+		}
+
+		totalArea -= area(bounds, b);
+
+		bounds[b] = x0;
+		bounds[b + 1] = y0;
+		bounds[b + 2] = z0;
+		bounds[b + 3] = x1;
+		bounds[b + 4] = y1;
+		bounds[b + 5] = z1;
+
+		totalArea += area(bounds, b);
+
+		return true;
+	}
+
+	/**
+	 * Finds the nearest object hit by the ray in data.currentRay, starting at
+	 * data.camera. Only hits nearer than the given distance are considered.
+	 *
+	 * @return distance to the nearest hit, data.bestObject is set if a nearer
+	 *         object than the given one was found
+	 */
+	public double intersect(TracerDataSet data, double raylen2, double nearest) {
+		return intersect(data, raylen2, nearest, false);
+	}
+
+	/**
+	 * Same as intersect() for a primary ray, data.camera must be the camera
+	 * the objects were prepared for.
+	 */
+	public double intersectPrimary(TracerDataSet data, double raylen2, double nearest) {
+		return intersect(data, raylen2, nearest, true);
+	}
+
+	private double intersect(TracerDataSet data, double raylen2, double nearest, boolean primary) {
+		if (primitives.length == 0) {
+			return nearest;
+		}
+
+		final V3 camera = data.camera;
+		final V3 ray = data.currentRay;
+
+		final double ox = camera.x;
+		final double oy = camera.y;
+		final double oz = camera.z;
+		final double ix = 1.0 / ray.x;
+		final double iy = 1.0 / ray.y;
+		final double iz = 1.0 / ray.z;
+
+		final int[] stack = data.nodeStack;
+		int top = 0;
+		int node = 0;
+
+		while (true) {
+			if (hitsBox(node, ox, oy, oz, ix, iy, iz, nearest)) {
+				final int n = count[node];
+
+				if (n > 0) {
+					final int first = offset[node];
+					data.intersectionTests += n;
+
+					if (sphereLeaf[node]) {
+						final double[] distances = data.sphereDistances;
+						kernel.intersect(spheres, first, n, camera, ray, distances);
+
+						for (int i = 0; i < n; i++) {
+							if (distances[i] >= 0 && distances[i] < nearest) {
+								data.bestObject = primitives[first + i];
+								nearest = distances[i];
+							}
+						}
+					} else {
+						for (int i = first; i < first + n; i++) {
+							final SceneObject object = primitives[i];
+							final double distanceToObject = primary
+									? object.distanceFromCamera(ray, raylen2)
+									: object.distanceToIntersection(camera, ray, raylen2);
+
+							if (distanceToObject >= 0 && distanceToObject < nearest) {
+								data.bestObject = object;
+								nearest = distanceToObject;
+							}
+						}
+					}
+				} else {
+					//visit the child on the ray's side of the split first
+					final double dir = axis[node] == 0 ? ray.x : (axis[node] == 1 ? ray.y : ray.z);
+
+					if (dir < 0) {
+						stack[top++] = node + 1;
+						node = offset[node];
+					} else {
+						stack[top++] = offset[node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+
+			if (top == 0) {
+				break;
+			}
+			node = stack[--top];
+		}
+
+		return nearest;
+	}
+
+	/**
+	 * Nearest hits for a packet of primary rays, data.camera must be the
+	 * camera the objects were prepared for. The packet enters a node if any of its rays hits the box, so coherent rays
+	 * walk the tree once instead of once each.
+	 * 
+	 * data.packetDistances and data.packetObjects must hold the nearest hits
+	 * found so far for the first n rays of data.packetRays, they are updated
+	 * where the hierarchy has something nearer.
+	 */
+	public void intersectPacket(TracerDataSet data, int n) {
+		if (primitives.length == 0) {
+			return;
+		}
+
+		final V3 camera = data.camera;
+		final V3[] rays = data.packetRays;
+		final double[] inverse = data.packetInverse;
+		final double[] nearest = data.packetDistances;
+
+		final double ox = camera.x;
+		final double oy = camera.y;
+		final double oz = camera.z;
+
+		for (int r = 0; r < n; r++) {
+			inverse[r * 3] = 1.0 / rays[r].x;
+			inverse[r * 3 + 1] = 1.0 / rays[r].y;
+			inverse[r * 3 + 2] = 1.0 / rays[r].z;
+		}
+
+		final int[] stack = data.nodeStack;
+		int top = 0;
+		int node = 0;
+
+		while (true) {
+			boolean any = false;
+			for (int r = 0; r < n && !any; r++) {
+				any = hitsBox(node, ox, oy, oz, inverse[r * 3], inverse[r * 3 + 1], inverse[r * 3 + 2], nearest[r]);
+			}
+
+			if (any) {
+				final int count = this.count[node];
+
+				if (count > 0) {
+					final int first = offset[node];
+					data.intersectionTests += n * count;
+
+					for (int r = 0; r < n; r++) {
+						final V3 ray = rays[r];
+
+						if (sphereLeaf[node]) {
+							final double[] distances = data.sphereDistances;
+							kernel.intersect(spheres, first, count, camera, ray, distances);
+
+							for (int i = 0; i < count; i++) {
+								if (distances[i] >= 0 && distances[i] < nearest[r]) {
+									data.packetObjects[r] = primitives[first + i];
+									nearest[r] = distances[i];
+								}
+							}
+						} else {
+							final double raylen2 = ray.length2();
+
+							for (int i = first; i < first + count; i++) {
+								final SceneObject object = primitives[i];
+								final double distanceToObject = object.distanceFromCamera(ray, raylen2);
+
+								if (distanceToObject >= 0 && distanceToObject < nearest[r]) {
+									data.packetObjects[r] = object;
+									nearest[r] = distanceToObject;
+								}
+							}
+						}
+					}
+				} else {
+					//the rays point almost the same way, order the children by the first
+					final V3 ray = rays[0];
+					final double dir = axis[node] == 0 ? ray.x : (axis[node] == 1 ? ray.y : ray.z);
+
+					if (dir < 0) {
+						stack[top++] = node + 1;
+						node = offset[node];
+					} else {
+						stack[top++] = offset[node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+
+			if (top == 0) {
+				break;
+			}
+			node = stack[--top];
+		}
+	}
+
+	/**
+	 * Finds any object hit by the ray in data.currentRay between data.camera
+	 * and maxDistance. Returns at the first hit, which need not be the
+	 * nearest one.
+	 * 
+	 * @return the object found or null
+	 */
+	public SceneObject findOccluder(TracerDataSet data, double raylen2, double maxDistance) {
+		if (primitives.length == 0) {
+			return null;
+		}
+
+		final V3 camera = data.camera;
+		final V3 ray = data.currentRay;
+
+		final double ox = camera.x;
+		final double oy = camera.y;
+		final double oz = camera.z;
+		final double ix = 1.0 / ray.x;
+		final double iy = 1.0 / ray.y;
+		final double iz = 1.0 / ray.z;
+
+		final int[] stack = data.nodeStack;
+		int top = 0;
+		int node = 0;
+
+		while (true) {
+			if (hitsBox(node, ox, oy, oz, ix, iy, iz, maxDistance)) {
+				final int n = count[node];
+
+				if (n > 0) {
+					final int first = offset[node];
+
+					if (sphereLeaf[node]) {
+						final double[] distances = data.sphereDistances;
+						kernel.intersect(spheres, first, n, camera, ray, distances);
+						data.intersectionTests += n;
+
+						for (int i = 0; i < n; i++) {
+							if (distances[i] >= 0 && distances[i] < maxDistance) {
+								return primitives[first + i];
+							}
+						}
+					} else {
+						for (int i = first; i < first + n; i++) {
+							data.intersectionTests++;
+							if (primitives[i].occludes(camera, ray, raylen2, maxDistance)) {
+								return primitives[i];
+							}
+						}
+					}
+				} else {
+					stack[top++] = offset[node];
+					node = node + 1;
+					continue;
+				}
+			}
+
+			if (top == 0) {
+				return null;
+			}
+			node = stack[--top];
+		}
+	}
+
+	/**
+	 * Slab test of the ray against the box of a node.
+	 *
+	 * @return true if the ray passes through the box between 0 and limit
+	 */
+	private boolean hitsBox(int node, double ox, double oy, double oz, double ix, double iy, double iz, double limit) {
+		final int b = node * 6;
+
+		double near = 0;
+		double far = limit;
+
+		double t1 = (bounds[b] - ox) * ix;
+		double t2 = (bounds[b + 3] - ox) * ix;
+		//comparisons with NaN fail, which leaves the range untouched for rays parallel to a slab
+		if (t1 > t2) { final double t = t1; t1 = t2; t2 = t; }
+		if (t1 > near) near = t1;
+		if (t2 < far) far = t2;
+
+		t1 = (bounds[b + 1] - oy) * iy;
+		t2 = (bounds[b + 4] - oy) * iy;
+		if (t1 > t2) { final double t = t1; t1 = t2; t2 = t; }
+		if (t1 > near) near = t1;
+		if (t2 < far) far = t2;
+
+		t1 = (bounds[b + 2] - oz) * iz;
+		t2 = (bounds[b + 5] - oz) * iz;
+		if (t1 > t2) { final double t = t1; t1 = t2; t2 = t; }
+		if (t1 > near) near = t1;
+		if (t2 < far) far = t2;
+
+		return near <= far;
+	}
+
+	private int build(int start, int end, int depth, int parentNode) {
+		final int node = nodeCount++;
+		final int b = node * 6;
+
+		parent[node] = parentNode;
+
+		bounds[b] = bounds[b + 1] = bounds[b + 2] = Double.MAX_VALUE;
+		bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = -Double.MAX_VALUE;
+
+		double cmin0 = Double.MAX_VALUE, cmin1 = Double.MAX_VALUE, cmin2 = Double.MAX_VALUE;
+		double cmax0 = -Double.MAX_VALUE, cmax1 = -Double.MAX_VALUE, cmax2 = -Double.MAX_VALUE;
+
+		for (int i = start; i < end; i++) {
+			final int p = order[i];
+			for (int k = 0; k < 3; k++) {
+				bounds[b + k] = Math.min(bounds[b + k], primBounds[p * 6 + k]);
+				bounds[b + 3 + k] = Math.max(bounds[b + 3 + k], primBounds[p * 6 + 3 + k]);
+			}
+			cmin0 = Math.min(cmin0, centroids[p * 3]);
+			cmin1 = Math.min(cmin1, centroids[p * 3 + 1]);
+			cmin2 = Math.min(cmin2, centroids[p * 3 + 2]);
+			cmax0 = Math.max(cmax0, centroids[p * 3]);
+			cmax1 = Math.max(cmax1, centroids[p * 3 + 1]);
+			cmax2 = Math.max(cmax2, centroids[p * 3 + 2]);
+		}
+
+		final int n = end - start;
+
+		if (n <= 1 || depth >= MAX_DEPTH - 2) {
+			makeLeaf(node, start, n);
+			return node;
+		}
+
+		final double[] cmin = { cmin0, cmin1, cmin2 };
+		final double[] cmax = { cmax0, cmax1, cmax2 };
+
+		//find the cheapest split plane over all axes
+		final int[] binCount = new int[BINS];
+		final double[] binBounds = new double[BINS * 6];
+		final double[] rightArea = new double[BINS];
+		final int[] rightCount = new int[BINS];
+
+		double bestCost = Double.MAX_VALUE;
+		int bestAxis = -1;
+		int bestBin = 0;
+
+		for (int k = 0; k < 3; k++) {
+			final double extent = cmax[k] - cmin[k];
+			if (extent <= 0) {
+				continue;
+			}
+
+			Arrays.fill(binCount, 0);
+			for (int i = 0; i < BINS; i++) {
+				emptyBox(binBounds, i * 6);
+			}
+
+			for (int i = start; i < end; i++) {
+				final int p = order[i];
+				final int bin = binIndex(centroids[p * 3 + k], cmin[k], extent);
+				binCount[bin]++;
+				growBox(binBounds, bin * 6, primBounds, p * 6);
+			}
+
+			//sweep from the right, remembering area and count of everything right of each plane
+			final double[] box = new double[6];
+			emptyBox(box, 0);
+			int c = 0;
+			for (int i = BINS - 1; i > 0; i--) {
+				growBox(box, 0, binBounds, i * 6);
+				c += binCount[i];
+				rightCount[i] = c;
+				rightArea[i] = area(box, 0);
+			}
+
+			emptyBox(box, 0);
+			c = 0;
+			for (int i = 0; i < BINS - 1; i++) {
+				growBox(box, 0, binBounds, i * 6);
+				c += binCount[i];
+
+				if (c == 0 || rightCount[i + 1] == 0) {
+					continue;
+				}
+
+				final double cost = c * area(box, 0) + rightCount[i + 1] * rightArea[i + 1];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = k;
+					bestBin = i;
+				}
+			}
+		}
+
+		final double nodeArea = area(bounds, b);
+		final double leafCost = INTERSECTION_COST * n;
+		final double splitCost = TRAVERSAL_COST + INTERSECTION_COST * bestCost / nodeArea;
+
+		if (bestAxis < 0) {
+			//all centroids coincide, no plane separates them
+			if (n <= maxLeafSize) {
+				makeLeaf(node, start, n);
+			} else {
+				splitMedian(node, start, end, depth);
+			}
+			return node;
+		}
+
+		if (n <= maxLeafSize && leafCost <= splitCost) {
+			makeLeaf(node, start, n);
+			return node;
+		}
+
+		//partition the primitives in place on the chosen plane
+		final double extent = cmax[bestAxis] - cmin[bestAxis];
+		int mid = start;
+		for (int i = start; i < end; i++) {
+			final int p = order[i];
+			if (binIndex(centroids[p * 3 + bestAxis], cmin[bestAxis], extent) <= bestBin) {
+				order[i] = order[mid];
+				order[mid++] = p;
+			}
+		}
+
+		axis[node] = (byte) bestAxis;
+		count[node] = 0;
+		build(start, mid, depth + 1, node);
+		offset[node] = build(mid, end, depth + 1, node);
+
+		return node;
+	}
+
+	/**
+	 * Fallback for many objects sharing one centroid, splits them by count.
+	 */
+	private void splitMedian(int node, int start, int end, int depth) {
+		final int mid = (start + end) >> 1;
+		axis[node] = 0;
+		count[node] = 0;
+		build(start, mid, depth + 1, node);
+		offset[node] = build(mid, end, depth + 1, node);
+	}
+
+	private void makeLeaf(int node, int start, int n) {
+		offset[node] = start;
+		count[node] = n;
+
+		for (int i = start; i < start + n; i++) {
+			leafOf[i] = node;
+		}
+	}
+
+	private static int binIndex(double centroid, double min, double extent) {
+		final int bin = (int) (BINS * (centroid - min) / extent);
+		return Math.min(BINS - 1, Math.max(0, bin));
+	}
+
+	private static void emptyBox(double[] box, int b) {
+		box[b] = box[b + 1] = box[b + 2] = Double.MAX_VALUE;
+		box[b + 3] = box[b + 4] = box[b + 5] = -Double.MAX_VALUE;
+	}
+
+	private static void growBox(double[] box, int b, double[] other, int o) {
+		for (int k = 0; k < 3; k++) {
+			box[b + k] = Math.min(box[b + k], other[o + k]);
+			box[b + 3 + k] = Math.max(box[b + 3 + k], other[o + 3 + k]);
+		}
+	}
+
+	private static double area(double[] box, int b) {
+		final double dx = box[b + 3] - box[b];
+		final double dy = box[b + 4] - box[b + 1];
+		final double dz = box[b + 5] - box[b + 2];
+
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+
+		return 2.0 * (dx * dy + dy * dz + dz * dx);
+	}
+}
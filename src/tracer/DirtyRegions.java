@@ -0,0 +1,202 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import tracer.objects.Material;
+import tracer.objects.SceneObject;
+
+/**
+ * Finds the screen tiles a frame has to trace again when the view stayed
+ * the same and only some objects moved.
+ *
+ * A moved object changes the pixels that see its old or new bounds, the
+ * pixels that see its shadow volume from the light, and everything seen
+ * in a mirror. The screen area of each is estimated from the projected
+ * corners of the bounds, so the result errs towards tracing too much.
+ * Anything else, e.g. a new camera, light, material or object, dirties
+ * every tile.
+ */
+public class DirtyRegions {
+	private final View lastView = new View();
+	private final V3 lastLight = new V3();
+	private int lastWidth;
+	private int lastHeight;
+	private int lastTileSize;
+	private boolean valid;
+
+	//bounds of the bounded objects and position of the others, at the last frame
+	private final IdentityHashMap<SceneObject, double[]> lastBounds = new IdentityHashMap<SceneObject, double[]>();
+	private final IdentityHashMap<SceneObject, Material> lastMaterials = new IdentityHashMap<SceneObject, Material>();
+
+	private boolean[] dirty = new boolean[0];
+	private int dirtyCount;
+
+	private final ScreenProjection projection = new ScreenProjection();
+	private int tilesX;
+
+	private final V3 min = new V3();
+	private final V3 max = new V3();
+
+	/**
+	 * Forgets the last frame, the next one is traced completely.
+	 */
+	public void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * Works out which tiles of the coming frame need tracing.
+	 *
+	 * @return the number of dirty tiles
+	 */
+	public int update(Scene scene, View view, int width, int height, int tileSize, int tilesX, int tileCount) {
+		this.tilesX = tilesX;
+		projection.setFrame(view, width, height, tileSize, tilesX, tileCount / tilesX);
+
+		if (dirty.length != tileCount) {
+			dirty = new boolean[tileCount];
+		}
+		Arrays.fill(dirty, false);
+		dirtyCount = 0;
+
+		boolean all = !valid
+				|| width != lastWidth || height != lastHeight || tileSize != lastTileSize
+				|| !same(view.camera, lastView.camera)
+				|| !same(view.cameraToLookAt, lastView.cameraToLookAt)
+				|| !same(view.horz, lastView.horz)
+				|| !same(view.vert, lastView.vert)
+				|| !same(scene.light, lastLight);
+
+		final ArrayList<SceneObject> objects = scene.getSceneObjects();
+		if (objects.size() != lastBounds.size()) {
+			all = true;
+		}
+
+		boolean moved = false;
+
+		for (int i = 0; i < objects.size(); i++) {
+			final SceneObject object = objects.get(i);
+			final boolean bounded = object.getBounds(min, max);
+
+			//materials are immutable, a new one means the object was recoloured
+			if (lastMaterials.put(object, object.getMaterial()) != object.getMaterial()) {
+				all = true;
+			}
+
+			double[] last = lastBounds.get(object);
+			if (last == null) {
+				last = new double[6];
+				lastBounds.put(object, last);
+				all = true;
+			} else if (!all) {
+				if (bounded) {
+					if (last[0] != min.x || last[1] != min.y || last[2] != min.z
+							|| last[3] != max.x || last[4] != max.y || last[5] != max.z) {
+						markObject(scene.light, last[0], last[1], last[2], last[3], last[4], last[5]);
+						markObject(scene.light, min.x, min.y, min.z, max.x, max.y, max.z);
+						moved = true;
+					}
+				} else {
+					final V3 pos = object.getPos();
+					if (last[0] != pos.x || last[1] != pos.y || last[2] != pos.z) {
+						all = true;
+					}
+				}
+			}
+
+			if (bounded) {
+				last[0] = min.x;
+				last[1] = min.y;
+				last[2] = min.z;
+				last[3] = max.x;
+				last[4] = max.y;
+				last[5] = max.z;
+			} else {
+				final V3 pos = object.getPos();
+				last[0] = pos.x;
+				last[1] = pos.y;
+				last[2] = pos.z;
+			}
+		}
+
+		//a mirror may show any moved object
+		for (int i = 0; moved && !all && i < objects.size(); i++) {
+			final SceneObject object = objects.get(i);
+
+			if (object.isReflective()) {
+				if (object.getBounds(min, max)) {
+					markBox(min.x, min.y, min.z, max.x, max.y, max.z, null);
+				} else {
+					all = true;
+				}
+			}
+		}
+
+		lastView.set(view);
+		lastLight.set(scene.light);
+		lastWidth = width;
+		lastHeight = height;
+		lastTileSize = tileSize;
+		valid = true;
+
+		if (all) {
+			Arrays.fill(dirty, true);
+			dirtyCount = tileCount;
+		}
+
+		return dirtyCount;
+	}
+
+	public boolean isDirty(int tile) {
+		return dirty[tile];
+	}
+
+	public int getDirtyCount() {
+		return dirtyCount;
+	}
+
+	/**
+	 * Marks the tiles that see the box or its shadow.
+	 */
+	private void markObject(V3 light, double x0, double y0, double z0, double x1, double y1, double z1) {
+		markBox(x0, y0, z0, x1, y1, z1, null);
+		markBox(x0, y0, z0, x1, y1, z1, light);
+	}
+
+	/**
+	 * Marks the tiles the projection of the box or its shadow volume covers.
+	 */
+	private void markBox(double x0, double y0, double z0, double x1, double y1, double z1, V3 light) {
+		if (!projection.project(x0, y0, z0, x1, y1, z1, light)) {
+			markAll();
+			return;
+		}
+
+		for (int ty = projection.tileY0; ty <= projection.tileY1; ty++) {
+			for (int tx = projection.tileX0; tx <= projection.tileX1; tx++) {
+				final int tile = ty * tilesX + tx;
+				if (!dirty[tile]) {
+					dirty[tile] = true;
+					dirtyCount++;
+				}
+			}
+		}
+	}
+
+	private void markAll() {
+		Arrays.fill(dirty, true);
+		dirtyCount = dirty.length;
+	}
+
+	private static boolean same(V3 a, V3 b) {
+		return a.x == b.x && a.y == b.y && a.z == b.z;
+	}
+}
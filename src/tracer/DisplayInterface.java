@@ -8,8 +8,6 @@
  */
 package tracer;
 
-import java.awt.Graphics;
-
 /**
  * The tracer will use this to let a component display the 
  * calculated image.
@@ -23,5 +21,13 @@ public interface DisplayInterface
  
     public void setLine(int y, int[] linepix);
 
-    public void paint(Graphics gr);
+    /**
+     * Copies a w*h block of pixels, stored row by row, to x, y.
+     */
+    public void setTile(int x, int y, int w, int h, int[] tilepix);
+
+    /**
+     * Called when all tiles of a frame have been set.
+     */
+    public void frameComplete();
 }
@@ -21,16 +21,21 @@ import java.awt.image.WritableRaster;
 import javax.swing.JPanel;
 
 /**
- * A JPanel based display for the raytraced image. Uses double buffering.
+ * A JPanel based display for the raytraced image. Uses triple buffering:
+ * the tracer writes the next frame into the render buffer while the last
+ * finished frame is painted from the show buffer, and the ready buffer
+ * holds a finished frame that hasn't been shown yet.
  * 
  * @author Hj. Malthaner
  */
 public class DisplayPanel extends JPanel implements DisplayInterface {
-	private BufferedImage bufferImg1;
-	private BufferedImage bufferImg2;
-
+	private BufferedImage renderBuffer;
+	private BufferedImage readyBuffer;
 	private BufferedImage showBuffer;
 
+	private final Object swapLock = new Object();
+	private boolean frameReady;
+
 	private int bufferW;
 	private int bufferH;
 
@@ -67,7 +72,6 @@ public class DisplayPanel extends JPanel implements DisplayInterface {
 		// ((Graphics2D)gr).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
 		// RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 		paintBuffered(gr);
-		switchBuffers();
 	}
 
 	private void paintBuffered(Graphics gr) {
@@ -75,7 +79,19 @@ public class DisplayPanel extends JPanel implements DisplayInterface {
 			createBackBuffer();
 		}
 
-		gr.drawImage(showBuffer, 0, 0, null);
+		final BufferedImage buffer;
+
+		synchronized (swapLock) {
+			if (frameReady) {
+				final BufferedImage shown = showBuffer;
+				showBuffer = readyBuffer;
+				readyBuffer = shown;
+				frameReady = false;
+			}
+			buffer = showBuffer;
+		}
+
+		gr.drawImage(buffer, 0, 0, null);
 	}
 
 	private void createBackBuffer() {
@@ -85,10 +101,12 @@ public class DisplayPanel extends JPanel implements DisplayInterface {
 			bufferW = getWidth();
 			bufferH = getHeight();
 
-			bufferImg1 = new BufferedImage(Math.max(bufferW, 16), Math.max(bufferH, 16), BufferedImage.TYPE_INT_RGB);
-			bufferImg2 = new BufferedImage(Math.max(bufferW, 16), Math.max(bufferH, 16), BufferedImage.TYPE_INT_RGB);
-
-			showBuffer = bufferImg1;
+			synchronized (swapLock) {
+				renderBuffer = new BufferedImage(Math.max(bufferW, 16), Math.max(bufferH, 16), BufferedImage.TYPE_INT_RGB);
+				readyBuffer = new BufferedImage(Math.max(bufferW, 16), Math.max(bufferH, 16), BufferedImage.TYPE_INT_RGB);
+				showBuffer = new BufferedImage(Math.max(bufferW, 16), Math.max(bufferH, 16), BufferedImage.TYPE_INT_RGB);
+				frameReady = false;
+			}
 
 			bufferOk = true;
 		}
@@ -103,19 +121,9 @@ public class DisplayPanel extends JPanel implements DisplayInterface {
 	@Override
 	public void setLine(int y, int[] linepix) {
 		if (bufferOk) {
-			WritableRaster raster;
-
-			if (showBuffer == bufferImg1) {
-				raster = bufferImg2.getRaster();
-			} else {
-				raster = bufferImg1.getRaster();
-			}
-
-			DataBuffer buffer = raster.getDataBuffer();
-
 			final int off = y * bufferW;
 
-			int[] bufferData = ((DataBufferInt) buffer).getData();
+			int[] bufferData = getBackBufferData();
 
 			if (bufferData.length > off + linepix.length) {
 				System.arraycopy(linepix, 0, bufferData, off, linepix.length);
@@ -123,11 +131,42 @@ public class DisplayPanel extends JPanel implements DisplayInterface {
 		}
 	}
 
-	public void switchBuffers() {
-		if (showBuffer == bufferImg1) {
-			showBuffer = bufferImg2;
-		} else {
-			showBuffer = bufferImg1;
+	@Override
+	public void setTile(int x, int y, int w, int h, int[] tilepix) {
+		if (bufferOk) {
+			int[] bufferData = getBackBufferData();
+
+			for (int row = 0; row < h; row++) {
+				final int off = (y + row) * bufferW + x;
+
+				if (bufferData.length >= off + w) {
+					System.arraycopy(tilepix, row * w, bufferData, off, w);
+				}
+			}
+		}
+	}
+
+	private int[] getBackBufferData() {
+		WritableRaster raster = renderBuffer.getRaster();
+
+		DataBuffer buffer = raster.getDataBuffer();
+
+		return ((DataBufferInt) buffer).getData();
+	}
+
+	/**
+	 * The render buffer holds a finished frame, it becomes the ready buffer
+	 * and the next paint() shows it.
+	 */
+	@Override
+	public void frameComplete() {
+		if (bufferOk) {
+			synchronized (swapLock) {
+				final BufferedImage rendered = renderBuffer;
+				renderBuffer = readyBuffer;
+				readyBuffer = rendered;
+				frameReady = true;
+			}
 		}
 	}
 }
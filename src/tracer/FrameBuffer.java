@@ -0,0 +1,55 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+/**
+ * Offscreen display that keeps the traced image in a plain int array,
+ * 0xRRGGBB per pixel, row by row. Needs no AWT at all.
+ */
+public class FrameBuffer implements DisplayInterface {
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+
+	public FrameBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.pixels = new int[width * height];
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public void setLine(int y, int[] linepix) {
+		if (y >= 0 && y < height) {
+			System.arraycopy(linepix, 0, pixels, y * width, Math.min(width, linepix.length));
+		}
+	}
+
+	@Override
+	public void setTile(int x, int y, int w, int h, int[] tilepix) {
+		for (int row = 0; row < h; row++) {
+			System.arraycopy(tilepix, row * w, pixels, (y + row) * width + x, w);
+		}
+	}
+
+	@Override
+	public void frameComplete() {
+	}
+
+	public int[] getPixels() {
+		return pixels;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for one traced frame, its duration is the frame
+ * latency.
+ */
+@Name("tracer.Frame")
+@Label("Frame")
+@Category("Tracer")
+@Description("A frame traced by the TracerCoordinator")
+public class FrameEvent extends Event {
+	@Label("Frame")
+	public int frame;
+
+	@Label("Primary Rays")
+	public long primaryRays;
+
+	@Label("Reflection Rays")
+	public long reflectionRays;
+
+	@Label("Shadow Rays")
+	public long shadowRays;
+
+	@Label("Intersection Tests")
+	public long intersectionTests;
+
+	@Label("Tiles")
+	public int tiles;
+
+	@Label("Traced Tiles")
+	public int tracedTiles;
+
+	@Label("Block Size")
+	@Description("Width and height of the pixel blocks sharing a primary ray")
+	public int blockSize;
+
+	@Label("Cancelled")
+	public boolean cancelled;
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import tracer.objects.SceneObject;
+
+/**
+ * Per pixel cache of the primary hits: the object and the distance along
+ * the primary ray.
+ *
+ * As long as the view and the geometry stay the same, a frame can be
+ * shaded from the cache without intersecting the primary rays again, e.g.
+ * after the light or a material was changed. Hit point and normal are
+ * derived from the distance by SceneObject.hit(), which is cheap next to
+ * finding the hit.
+ */
+public class GBuffer {
+	private SceneObject[] objects = new SceneObject[0];
+	private double[] distances = new double[0];
+	private int width;
+
+	private final View lastView = new View();
+	private int lastHeight;
+	private int lastGeometry;
+	private boolean valid;
+
+	/**
+	 * Decides how the coming frame uses the cache.
+	 *
+	 * @return true if it can be shaded from the cache, false if the primary
+	 *         hits must be traced and recorded
+	 */
+	public boolean prepare(Scene scene, View view, int width, int height) {
+		final boolean reuse = valid
+				&& width == this.width && height == lastHeight
+				&& scene.getGeometryVersion() == lastGeometry
+				&& same(view.camera, lastView.camera)
+				&& same(view.cameraToLookAt, lastView.cameraToLookAt)
+				&& same(view.horz, lastView.horz)
+				&& same(view.vert, lastView.vert);
+
+		if (objects.length != width * height) {
+			objects = new SceneObject[width * height];
+			distances = new double[width * height];
+		}
+
+		if (width != this.width || height != lastHeight) {
+			valid = false;
+		}
+
+		this.width = width;
+		this.lastHeight = height;
+		this.lastGeometry = scene.getGeometryVersion();
+		this.lastView.set(view);
+
+		return reuse;
+	}
+
+	/**
+	 * Called after each frame that used the cache. Pixels that weren't
+	 * traced keep their entries, so the cache is only complete if it was
+	 * before or if the frame traced all of them.
+	 */
+	public void frameDone(boolean cancelled, boolean allTraced) {
+		valid = !cancelled && (valid || allTraced);
+	}
+
+	public void invalidate() {
+		valid = false;
+	}
+
+	public void record(int x, int y, SceneObject object, double distance) {
+		final int pixel = y * width + x;
+		objects[pixel] = object;
+		distances[pixel] = distance;
+	}
+
+	public SceneObject getObject(int x, int y) {
+		return objects[y * width + x];
+	}
+
+	public double getDistance(int x, int y) {
+		return distances[y * width + x];
+	}
+
+	private static boolean same(V3 a, V3 b) {
+		return a.x == b.x && a.y == b.y && a.z == b.z;
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import tracer.objects.Billboard;
+import tracer.objects.Heightfield;
+import tracer.objects.Material;
+
+/**
+ * Renders the demo scene without a window, for batch runs on servers.
+ * 
+ * Usage: HeadlessRay [-size WIDTHxHEIGHT] [-frames N] [-threads N] [-tile N]
+ *                    [-format png|ppm|none] [-out DIR] [-check-allocations]
+ *                    [-packets] [-incremental] [-gbuffer]
+ *                    [-animate scene|light|none] [-target-ms N]
+ *                    [-checkerboard] [-aa DEPTH] [-wavefront]
+ *                    [-no-binning] [-terrain SIZE|IMAGE] [-forest N]
+ *                    [-texture-budget-mb N] [-texture-cache DIR]
+ * 
+ * With -check-allocations the heap allocated by the worker threads is
+ * measured over all frames after a warm up, and the run fails with exit
+ * code 2 if the trace path allocated anything. Run it with
+ * -XX:TieredStopAtLevel=1, see AllocationCheck.
+ */
+public class HeadlessRay {
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+
+		int width = 800;
+		int height = 600;
+		int frames = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int tileSize = TracerCoordinator.DEFAULT_TILE_SIZE;
+		String format = "png";
+		File outDir = new File(".");
+		boolean checkAllocations = false;
+		boolean packets = false;
+		boolean incremental = false;
+		boolean gbuffer = false;
+		boolean checkerboard = false;
+		boolean wavefront = false;
+		boolean binning = true;
+		String animate = "scene";
+		double targetMillis = 0;
+		int antialiasing = 0;
+		String terrain = null;
+		int forest = 0;
+		double textureBudget = 0;
+		File textureCache = null;
+
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+
+			if (arg.equals("-check-allocations")) {
+				checkAllocations = true;
+				continue;
+			}
+
+			if (arg.equals("-packets")) {
+				packets = true;
+				continue;
+			}
+
+			if (arg.equals("-incremental")) {
+				incremental = true;
+				continue;
+			}
+
+			if (arg.equals("-gbuffer")) {
+				gbuffer = true;
+				continue;
+			}
+
+			if (arg.equals("-checkerboard")) {
+				checkerboard = true;
+				continue;
+			}
+
+			if (arg.equals("-wavefront")) {
+				wavefront = true;
+				continue;
+			}
+
+			if (arg.equals("-no-binning")) {
+				binning = false;
+				continue;
+			}
+
+			if (i + 1 >= args.length) {
+				usage("Missing value for " + arg);
+			}
+
+			final String value = args[++i];
+
+			if (arg.equals("-size")) {
+				final int split = value.indexOf('x');
+				if (split < 0) {
+					usage("Size must look like 800x600");
+				}
+				width = Integer.parseInt(value.substring(0, split));
+				height = Integer.parseInt(value.substring(split + 1));
+			} else if (arg.equals("-frames")) {
+				frames = Integer.parseInt(value);
+			} else if (arg.equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if (arg.equals("-tile")) {
+				tileSize = Integer.parseInt(value);
+			} else if (arg.equals("-format")) {
+				format = value;
+			} else if (arg.equals("-out")) {
+				outDir = new File(value);
+			} else if (arg.equals("-animate")) {
+				animate = value;
+			} else if (arg.equals("-target-ms")) {
+				targetMillis = Double.parseDouble(value);
+			} else if (arg.equals("-aa")) {
+				antialiasing = Integer.parseInt(value);
+			} else if (arg.equals("-terrain")) {
+				terrain = value;
+			} else if (arg.equals("-forest")) {
+				forest = Integer.parseInt(value);
+			} else if (arg.equals("-texture-budget-mb")) {
+				textureBudget = Double.parseDouble(value);
+			} else if (arg.equals("-texture-cache")) {
+				textureCache = new File(value);
+			} else {
+				usage("Unknown option " + arg);
+			}
+		}
+
+		if (!format.equals("png") && !format.equals("ppm") && !format.equals("none")) {
+			usage("Unknown format " + format);
+		}
+
+		if (!animate.equals("scene") && !animate.equals("light") && !animate.equals("none")) {
+			usage("Unknown animation " + animate);
+		}
+
+		if (textureBudget > 0) {
+			Textures.getCache().setBudget((long) (textureBudget * (1 << 20)));
+		}
+		Textures.getCache().setDirectory(textureCache);
+
+		final FrameBuffer frameBuffer = new FrameBuffer(width, height);
+		final Scene scene = new Scene();
+		if (terrain != null) {
+			scene.add(createTerrain(terrain));
+		}
+		if (forest > 0) {
+			plantForest(scene, forest);
+		}
+		final View view = new View();
+		final TracerCoordinator tracer = new TracerCoordinator(frameBuffer, scene, view, threads, tileSize);
+		tracer.setPacketTracing(packets);
+		tracer.setIncremental(incremental);
+		tracer.setGBuffer(gbuffer);
+		tracer.setCheckerboard(checkerboard);
+		tracer.setAntialiasing(antialiasing);
+		tracer.setWavefront(wavefront);
+		tracer.setTileBinning(binning);
+		tracer.setTargetFrameMillis(targetMillis);
+
+		//the scene and the tracer have looked up their textures by now
+		final long preloadStart = System.nanoTime();
+		Textures.getCache().preload();
+		final double preloadMillis = (System.nanoTime() - preloadStart) / 1E6;
+
+		if (!format.equals("none")) {
+			outDir.mkdirs();
+		}
+
+		final Runnable trace = new Runnable() {
+			@Override
+			public void run() {
+				tracer.nextFrame();
+			}
+		};
+		final AllocationCheck allocationCheck = checkAllocations ? new AllocationCheck(tracer) : null;
+		long allocated = 0;
+
+		if (checkAllocations) {
+			final String animation = animate;
+			try {
+				final int warmup = allocationCheck.warmUp(new Runnable() {
+					@Override
+					public void run() {
+						animate(scene, animation);
+						view.animate();
+						tracer.nextFrame();
+					}
+				});
+				System.out.println("Warmed up in " + warmup + " frames");
+			} catch (IllegalStateException ex) {
+				System.out.println(ex.getMessage());
+				System.exit(2);
+			}
+		}
+
+		long traceTime = 0;
+
+		for (int frame = 0; frame < frames; frame++) {
+			animate(scene, animate);
+			view.animate();
+
+			final long t0 = System.nanoTime();
+			if (checkAllocations) {
+				allocated += allocationCheck.measure(trace);
+			} else {
+				trace.run();
+			}
+			traceTime += System.nanoTime() - t0;
+
+			final String name = String.format("frame_%04d.", frame) + format;
+			if (format.equals("png")) {
+				ImageFiles.writePNG(new File(outDir, name), frameBuffer.getPixels(), width, height);
+			} else if (format.equals("ppm")) {
+				ImageFiles.writePPM(new File(outDir, name), frameBuffer.getPixels(), width, height);
+			}
+		}
+
+		final double seconds = traceTime / 1E9;
+		final double msPerFrame = traceTime / 1E6 / frames;
+		final double pixelsPerSecond = (double) width * height * frames / seconds;
+
+		System.out.println(String.format("%d frames at %dx%d with %d threads: %.2f ms/frame, %.1f fps, %.0f primary rays/s",
+				frames, width, height, tracer.getWorkerIds().length, msPerFrame, frames / seconds, pixelsPerSecond));
+
+		final RenderMetrics metrics = tracer.getMetrics();
+		System.out.println(String.format("%d reflection and %d shadow rays, %.1f intersection tests per ray, p50/p90/p99 frame %.2f/%.2f/%.2f ms, %.1f%% of tiles traced, resolution scale %.2f",
+				metrics.getReflectionRays(), metrics.getShadowRays(), metrics.getIntersectionTestsPerRay(),
+				metrics.getFrameMillisP50(), metrics.getFrameMillisP90(), metrics.getFrameMillisP99(), metrics.getTracedTilePercent(),
+				metrics.getResolutionScale()));
+
+		if (wavefront) {
+			final double[] stages = metrics.getWavefrontStageMillis();
+			System.out.println(String.format("Wavefront stages per frame: generate %.2f, intersect %.2f, shade %.2f, shadow %.2f ms",
+					stages[0], stages[1], stages[2], stages[3]));
+		}
+
+		final TextureCache textures = Textures.getCache();
+		System.out.println(String.format("Textures: %d hits, %d misses, %d evictions, %.1f of %.1f MB resident, preloaded in %.1f ms",
+				metrics.getTextureHits(), textures.getMisses(), textures.getEvictions(),
+				textures.getResidentBytes() / 1048576.0, textures.getBudget() / 1048576.0, preloadMillis));
+
+		if (checkAllocations) {
+			System.out.println("Worker threads allocated " + allocated + " bytes");
+			if (allocated != 0) {
+				System.exit(2);
+			}
+		}
+	}
+
+	private static void animate(Scene scene, String animate) {
+		if (animate.equals("scene")) {
+			scene.animate();
+		} else if (animate.equals("light")) {
+			scene.animateLight();
+		}
+	}
+
+	/**
+	 * Terrain behind the spheres, either fractal with SIZE x SIZE samples or
+	 * from a grey scale height map.
+	 */
+	private static Heightfield createTerrain(String source) throws IOException {
+		final float[] heights;
+		final int samplesX;
+		final int samplesY;
+
+		if (source.matches("\\d+")) {
+			heights = Heightfield.generate(Integer.parseInt(source), 6, 1);
+			samplesX = (int) Math.sqrt(heights.length);
+			samplesY = samplesX;
+		} else {
+			final BufferedImage image = ImageIO.read(new File(source));
+			if (image == null) {
+				usage("Can't read height map " + source);
+			}
+			heights = Heightfield.fromImage(image, 6);
+			samplesX = image.getWidth();
+			samplesY = image.getHeight();
+		}
+
+		//the terrain spans 80 units, however many samples it has
+		final double cellSize = 80.0 / (Math.max(samplesX, samplesY) - 1);
+		final Heightfield terrain = new Heightfield(heights, samplesX, samplesY, new V3(-40, 4, 0), cellSize);
+		terrain.setMaterial(new Material(0x779944, 0));
+
+		final File ground = new File("resources/greenland/ground_0.jpg");
+		if (ground.exists()) {
+			terrain.setTexture(Textures.fromFile(ground), 4);
+		}
+
+		System.out.println(String.format("Terrain of %dx%d samples", samplesX, samplesY));
+		return terrain;
+	}
+
+	/**
+	 * Scatters plants and trees from the greenland tile catalog over the
+	 * floor.
+	 */
+	private static void plantForest(Scene scene, int count) throws IOException {
+		final File catalog = new File("resources/greenland/tiles.tica.zip");
+		if (!catalog.exists()) {
+			usage("Can't find " + catalog + ", run from the project directory");
+		}
+
+		final SpriteAtlas atlas = SpriteAtlas.load(catalog);
+		final ArrayList<SpriteAtlas.Sprite> plants = atlas.findSprites("type:plant");
+		plants.addAll(atlas.findSprites("type:tree"));
+
+		final Random random = new Random(1);
+		for (int i = 0; i < count; i++) {
+			final SpriteAtlas.Sprite sprite = plants.get(random.nextInt(plants.size()));
+			final V3 pos = new V3(random.nextDouble() * 40 - 20, random.nextDouble() * 40 - 5, 0);
+			scene.add(new Billboard(atlas, sprite, pos, 0.01));
+		}
+
+		System.out.println(String.format("%d sprites from an atlas of %dx%d texels", count, SpriteAtlas.WIDTH, atlas.getHeight()));
+	}
+
+	private static void usage(String message) {
+		System.err.println(message);
+		System.err.println("Usage: HeadlessRay [-size WIDTHxHEIGHT] [-frames N] [-threads N] [-tile N] [-format png|ppm|none] [-out DIR] [-check-allocations] [-packets] [-incremental] [-gbuffer] [-animate scene|light|none] [-target-ms N] [-checkerboard] [-aa DEPTH] [-wavefront] [-no-binning] [-terrain SIZE|IMAGE] [-forest N] [-texture-budget-mb N] [-texture-cache DIR]");
+		System.exit(1);
+	}
+}
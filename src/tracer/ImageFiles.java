@@ -0,0 +1,95 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes 0xRRGGBB pixel arrays as PPM or PNG files, without going through
+ * ImageIO and AWT.
+ */
+public class ImageFiles {
+
+	public static void writePPM(File file, int[] pixels, int width, int height) throws IOException {
+		final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+
+		try {
+			out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+
+			for (int i = 0; i < width * height; i++) {
+				final int rgb = pixels[i];
+				out.write(rgb >> 16);
+				out.write(rgb >> 8);
+				out.write(rgb);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void writePNG(File file, int[] pixels, int width, int height) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+		try {
+			out.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' });
+
+			final ByteArrayOutputStream header = new ByteArrayOutputStream();
+			final DataOutputStream headerData = new DataOutputStream(header);
+			headerData.writeInt(width);
+			headerData.writeInt(height);
+			headerData.writeByte(8); // bit depth
+			headerData.writeByte(2); // truecolour
+			headerData.writeByte(0); // deflate
+			headerData.writeByte(0); // adaptive filtering
+			headerData.writeByte(0); // no interlace
+			writeChunk(out, "IHDR", header.toByteArray());
+
+			final ByteArrayOutputStream image = new ByteArrayOutputStream();
+			final DeflaterOutputStream deflater = new DeflaterOutputStream(image);
+			final byte[] line = new byte[1 + width * 3];
+
+			for (int y = 0; y < height; y++) {
+				// filter type 0, raw scanline
+				line[0] = 0;
+				for (int x = 0; x < width; x++) {
+					final int rgb = pixels[y * width + x];
+					line[1 + x * 3] = (byte) (rgb >> 16);
+					line[2 + x * 3] = (byte) (rgb >> 8);
+					line[3 + x * 3] = (byte) rgb;
+				}
+				deflater.write(line);
+			}
+			deflater.finish();
+			writeChunk(out, "IDAT", image.toByteArray());
+
+			writeChunk(out, "IEND", new byte[0]);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+		final byte[] typeBytes = type.getBytes("US-ASCII");
+
+		final CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+}
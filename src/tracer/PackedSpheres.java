@@ -0,0 +1,37 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import tracer.objects.Sphere;
+
+/**
+ * Sphere geometry stored as structure of arrays, one entry per primitive
+ * slot of a bounding volume hierarchy. Slots not holding a sphere are
+ * left empty.
+ */
+public class PackedSpheres {
+	public final double[] x;
+	public final double[] y;
+	public final double[] z;
+	public final double[] radiusSquared;
+
+	public PackedSpheres(int size) {
+		x = new double[size];
+		y = new double[size];
+		z = new double[size];
+		radiusSquared = new double[size];
+	}
+
+	public void set(int i, Sphere sphere) {
+		final V3 pos = sphere.getPos();
+
+		x[i] = pos.x;
+		y[i] = pos.y;
+		z[i] = pos.z;
+		radiusSquared[i] = sphere.getRadiusSquared();
+	}
+}
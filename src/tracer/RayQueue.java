@@ -0,0 +1,82 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import tracer.objects.SceneObject;
+
+/**
+ * A batch of rays for the wavefront tracer, kept in primitive arrays so a
+ * stage can run over all of them in one pass.
+ */
+public class RayQueue {
+	public final double[] originX;
+	public final double[] originY;
+	public final double[] originZ;
+	public final double[] dirX;
+	public final double[] dirY;
+	public final double[] dirZ;
+
+	//pixel in the tile the ray contributes to
+	public final int[] pixel;
+	public final int[] brightness;
+	public final long[] color;
+
+	//footprint of the pixel at the ray start, see TraceResult.rayWidth
+	public final double[] width;
+
+	public final SceneObject[] object;
+	public final double[] distance;
+
+	public int size;
+
+	public RayQueue(int capacity) {
+		originX = new double[capacity];
+		originY = new double[capacity];
+		originZ = new double[capacity];
+		dirX = new double[capacity];
+		dirY = new double[capacity];
+		dirZ = new double[capacity];
+		pixel = new int[capacity];
+		brightness = new int[capacity];
+		color = new long[capacity];
+		width = new double[capacity];
+		object = new SceneObject[capacity];
+		distance = new double[capacity];
+	}
+
+	public int capacity() {
+		return pixel.length;
+	}
+
+	/**
+	 * Appends a ray starting at origin.
+	 * 
+	 * @return its index
+	 */
+	public int add(V3 origin, V3 dir, int pixel, int brightness) {
+		final int i = size++;
+
+		originX[i] = origin.x;
+		originY[i] = origin.y;
+		originZ[i] = origin.z;
+		dirX[i] = dir.x;
+		dirY[i] = dir.y;
+		dirZ[i] = dir.z;
+		this.pixel[i] = pixel;
+		this.brightness[i] = brightness;
+
+		return i;
+	}
+
+	/**
+	 * Sets origin and dir to the given ray.
+	 */
+	public void get(int i, V3 origin, V3 dir) {
+		origin.set(originX[i], originY[i], originZ[i]);
+		dir.set(dirX[i], dirY[i], dirZ[i]);
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Collects the per frame counters of a TracerCoordinator. Workers count
+ * into their own TracerDataSet, so there is nothing to contend on while
+ * tracing. The coordinator adds them up here once per frame.
+ */
+public class RenderMetrics implements RenderMetricsMBean {
+	private static final int HISTORY = 1024;
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private long frames;
+	private long cancelledFrames;
+	private long totalTiles;
+	private long totalTracedTiles;
+	private int blockSize = 1;
+	private long[] stageNanos = new long[4];
+	private long lastFrameNanos;
+	private final long[] frameNanos = new long[HISTORY];
+
+	private long primaryRays;
+	private long reflectionRays;
+	private long shadowRays;
+	private long intersectionTests;
+
+	//texel reads of the workers that found their page, and the cache misses already taken off them
+	private long textureHits;
+	private long textureMisses;
+
+	private ObjectName name;
+
+	private double[] workerBusyPercent = new double[0];
+	private long[] workerTiles = new long[0];
+
+	/**
+	 * Registers this with the platform MBean server, as
+	 * tracer:type=RenderMetrics for the first instance.
+	 */
+	public void register() {
+		final int instance = instances.getAndIncrement();
+
+		try {
+			name = new ObjectName("tracer:type=RenderMetrics" + (instance == 0 ? "" : ",instance=" + instance));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (Exception ex) {
+			name = null;
+			Logger.getLogger(RenderMetrics.class.getName()).log(Level.WARNING, "Can't register render metrics", ex);
+		}
+	}
+
+	/**
+	 * Removes this from the platform MBean server again.
+	 */
+	public void unregister() {
+		if (name == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception ex) {
+			Logger.getLogger(RenderMetrics.class.getName()).log(Level.WARNING, "Can't unregister render metrics", ex);
+		}
+		name = null;
+	}
+
+	/**
+	 * Takes the counters of a finished frame and resets them in the workers.
+	 * 
+	 * @param event started when the frame was, committed here
+	 * @param latencyNanos from the start of the frame until its last tile was done
+	 * @param tracedTiles tiles traced, the others were copied from the last frame
+	 * @param blockSize pixel blocks sharing a primary ray
+	 * @param cancelled the frame was dropped, its time is not in the history
+	 */
+	public void frameDone(FrameEvent event, int frame, long latencyNanos, List<TracerThread> workers, int tiles, int tracedTiles, int blockSize, boolean cancelled) {
+		long primary = 0;
+		long reflection = 0;
+		long shadow = 0;
+		long tests = 0;
+		long textureReads = 0;
+
+		final double[] busyPercent = new double[workers.size()];
+		final long[] tilesPerWorker = new long[workers.size()];
+		final long[] stages = new long[4];
+
+		for (int i = 0; i < workers.size(); i++) {
+			final TracerThread worker = workers.get(i);
+			final TracerDataSet data = worker.getTracerData();
+
+			primary += data.primaryRays;
+			reflection += data.reflectionRays;
+			shadow += data.shadowRays;
+			tests += data.intersectionTests;
+			textureReads += data.result.textureReads;
+
+			final long busy = Math.min(worker.getBusyNanos(), latencyNanos);
+			busyPercent[i] = latencyNanos > 0 ? 100.0 * busy / latencyNanos : 0;
+			tilesPerWorker[i] = worker.getTiles();
+
+			final WorkerFrameEvent workerEvent = new WorkerFrameEvent();
+			if (workerEvent.isEnabled()) {
+				workerEvent.frame = frame;
+				workerEvent.worker = worker.getName();
+				workerEvent.busy = busy;
+				workerEvent.parked = latencyNanos - busy;
+				workerEvent.tiles = worker.getTiles();
+				workerEvent.commit();
+			}
+
+			data.primaryRays = 0;
+			data.reflectionRays = 0;
+			data.shadowRays = 0;
+			data.intersectionTests = 0;
+			data.result.textureReads = 0;
+
+			stages[0] += data.generateNanos;
+			stages[1] += data.intersectNanos;
+			stages[2] += data.shadeNanos;
+			stages[3] += data.shadowNanos;
+			data.generateNanos = 0;
+			data.intersectNanos = 0;
+			data.shadeNanos = 0;
+			data.shadowNanos = 0;
+		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.frame = frame;
+			event.primaryRays = primary;
+			event.reflectionRays = reflection;
+			event.shadowRays = shadow;
+			event.intersectionTests = tests;
+			event.tiles = tiles;
+			event.tracedTiles = tracedTiles;
+			event.blockSize = blockSize;
+			event.cancelled = cancelled;
+			event.commit();
+		}
+
+		synchronized (this) {
+			if (cancelled) {
+				cancelledFrames++;
+			} else {
+				frameNanos[(int) (frames % HISTORY)] = latencyNanos;
+				frames++;
+				lastFrameNanos = latencyNanos;
+				totalTiles += tiles;
+				totalTracedTiles += tracedTiles;
+				this.blockSize = blockSize;
+
+				for (int i = 0; i < stages.length; i++) {
+					stageNanos[i] += stages[i];
+				}
+			}
+
+			primaryRays += primary;
+			reflectionRays += reflection;
+			shadowRays += shadow;
+			intersectionTests += tests;
+
+			//each miss was one of the reads
+			final long misses = Textures.getCache().getMisses();
+			textureHits += textureReads - (misses - textureMisses);
+			textureMisses = misses;
+
+			workerBusyPercent = busyPercent;
+			workerTiles = tilesPerWorker;
+		}
+	}
+
+	@Override
+	public synchronized long getFrames() {
+		return frames;
+	}
+
+	@Override
+	public synchronized long getCancelledFrames() {
+		return cancelledFrames;
+	}
+
+	@Override
+	public synchronized double getTracedTilePercent() {
+		return totalTiles > 0 ? 100.0 * totalTracedTiles / totalTiles : 0;
+	}
+
+	@Override
+	public synchronized double getResolutionScale() {
+		return 1.0 / blockSize;
+	}
+
+	@Override
+	public synchronized double[] getWavefrontStageMillis() {
+		final double[] millis = new double[stageNanos.length];
+		for (int i = 0; i < millis.length; i++) {
+			millis[i] = frames > 0 ? stageNanos[i] / 1E6 / frames : 0;
+		}
+		return millis;
+	}
+
+	@Override
+	public synchronized double getLastFrameMillis() {
+		return lastFrameNanos / 1E6;
+	}
+
+	@Override
+	public double getFrameMillisP50() {
+		return percentile(0.5);
+	}
+
+	@Override
+	public double getFrameMillisP90() {
+		return percentile(0.9);
+	}
+
+	@Override
+	public double getFrameMillisP99() {
+		return percentile(0.99);
+	}
+
+	/**
+	 * @return the given percentile of the latest frame times in ms
+	 */
+	private synchronized double percentile(double p) {
+		final int n = (int) Math.min(frames, HISTORY);
+		if (n == 0) {
+			return 0;
+		}
+
+		final long[] sorted = Arrays.copyOf(frameNanos, n);
+		Arrays.sort(sorted);
+
+		return sorted[Math.min(n - 1, (int) (p * n))] / 1E6;
+	}
+
+	@Override
+	public synchronized long getPrimaryRays() {
+		return primaryRays;
+	}
+
+	@Override
+	public synchronized long getReflectionRays() {
+		return reflectionRays;
+	}
+
+	@Override
+	public synchronized long getShadowRays() {
+		return shadowRays;
+	}
+
+	@Override
+	public synchronized double getIntersectionTestsPerRay() {
+		final long rays = primaryRays + reflectionRays + shadowRays;
+		return rays > 0 ? (double) intersectionTests / rays : 0;
+	}
+
+	@Override
+	public synchronized double[] getWorkerBusyPercent() {
+		return workerBusyPercent.clone();
+	}
+
+	@Override
+	public synchronized long[] getWorkerTiles() {
+		return workerTiles.clone();
+	}
+
+	@Override
+	public synchronized long getTextureHits() {
+		return textureHits;
+	}
+
+	@Override
+	public long getTextureMisses() {
+		return Textures.getCache().getMisses();
+	}
+
+	@Override
+	public long getTextureEvictions() {
+		return Textures.getCache().getEvictions();
+	}
+
+	@Override
+	public long getTextureResidentBytes() {
+		return Textures.getCache().getResidentBytes();
+	}
+
+	@Override
+	public synchronized void reset() {
+		frames = 0;
+		cancelledFrames = 0;
+		totalTiles = 0;
+		totalTracedTiles = 0;
+		stageNanos = new long[4];
+		lastFrameNanos = 0;
+		primaryRays = 0;
+		reflectionRays = 0;
+		shadowRays = 0;
+		intersectionTests = 0;
+		textureHits = 0;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+/**
+ * Render statistics published over JMX as tracer:type=RenderMetrics.
+ */
+public interface RenderMetricsMBean {
+	public long getFrames();
+
+	/**
+	 * @return frames dropped because the camera moved while they were traced
+	 */
+	public long getCancelledFrames();
+
+	/**
+	 * @return share of the tiles traced, the others were reused from the last frame
+	 */
+	public double getTracedTilePercent();
+
+	/**
+	 * @return the share of the width and height traced, below 1 while
+	 *         frames are too slow for the target frame time
+	 */
+	public double getResolutionScale();
+
+	/**
+	 * @return mean time per frame of the wavefront generate, intersect,
+	 *         shade and shadow stages, summed over the workers
+	 */
+	public double[] getWavefrontStageMillis();
+
+	public double getLastFrameMillis();
+
+	public double getFrameMillisP50();
+
+	public double getFrameMillisP90();
+
+	public double getFrameMillisP99();
+
+	public long getPrimaryRays();
+
+	public long getReflectionRays();
+
+	public long getShadowRays();
+
+	public double getIntersectionTestsPerRay();
+
+	/**
+	 * @return per worker share of the last frame spent tracing, the rest was parked
+	 */
+	public double[] getWorkerBusyPercent();
+
+	public long[] getWorkerTiles();
+
+	/**
+	 * @return texel reads from resident texture pages, counted by the
+	 *         workers and added up after each frame
+	 */
+	public long getTextureHits();
+
+	/**
+	 * @return texel reads that had to decode their texture
+	 */
+	public long getTextureMisses();
+
+	public long getTextureEvictions();
+
+	public long getTextureResidentBytes();
+
+	public void reset();
+}
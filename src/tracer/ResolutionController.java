@@ -0,0 +1,71 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+/**
+ * Picks the render resolution that holds a target frame time.
+ *
+ * The resolution drops in whole steps: with a block size of n one ray is
+ * traced for each n x n pixel block, and its colour fills the block. The
+ * block grows when the smoothed frame time is over the target, and
+ * shrinks again once the frame time expected at the finer resolution fits.
+ */
+public class ResolutionController {
+	public static final int MAX_BLOCK_SIZE = 4;
+
+	//weight of the newest frame in the smoothed frame time
+	private static final double SMOOTHING = 0.25;
+
+	//frames to wait after a change, the smoothed time has to catch up
+	private static final int SETTLE_FRAMES = 4;
+
+	private final long targetNanos;
+	private int blockSize = 1;
+	private double average;
+	private int settle;
+
+	public ResolutionController(long targetNanos) {
+		this.targetNanos = targetNanos;
+	}
+
+	/**
+	 * Takes the time of a traced frame and adjusts the block size.
+	 */
+	public void frameDone(long latencyNanos) {
+		average = average == 0 ? latencyNanos : average + SMOOTHING * (latencyNanos - average);
+
+		if (settle > 0) {
+			settle--;
+			return;
+		}
+
+		if (average > targetNanos * 1.1 && blockSize < MAX_BLOCK_SIZE) {
+			change(blockSize + 1);
+		} else if (blockSize > 1) {
+			//ray count and frame time grow with the number of blocks
+			final double ratio = (double) blockSize / (blockSize - 1);
+			if (average * ratio * ratio < targetNanos * 0.9) {
+				change(blockSize - 1);
+			}
+		}
+	}
+
+	private void change(int newBlockSize) {
+		final double ratio = (double) blockSize / newBlockSize;
+		average *= ratio * ratio;
+		blockSize = newBlockSize;
+		settle = SETTLE_FRAMES;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public long getTargetNanos() {
+		return targetNanos;
+	}
+}
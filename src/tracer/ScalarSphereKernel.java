@@ -0,0 +1,42 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+/**
+ * Plain Java sphere kernel, the same arithmetic as Sphere but reading
+ * the packed arrays.
+ */
+public class ScalarSphereKernel extends SphereKernel {
+
+	@Override
+	public void intersect(PackedSpheres spheres, int first, int count, V3 camera, V3 ray, double[] distances) {
+		final double lengthOfRaySquared = ray.length2();
+
+		for (int i = 0; i < count; i++) {
+			final int s = first + i;
+
+			final double px = (camera.x - spheres.x[s]);
+			final double py = (camera.y - spheres.y[s]);
+			final double pz = (camera.z - spheres.z[s]);
+
+			final double projection = px * ray.x + py * ray.y + pz * ray.z;
+			final double lengthOfCameraToObjectSquared = px * px + py * py + pz * pz;
+
+			final double disk = projection * projection - lengthOfRaySquared * (lengthOfCameraToObjectSquared - spheres.radiusSquared[s]);
+
+			if (disk < 0) {
+				distances[i] = Double.MAX_VALUE;
+			} else {
+				final double root = Math.sqrt(disk);
+				final double t1 = (-projection - root);
+				final double t2 = (-projection + root);
+
+				distances[i] = (t1 < 0 ? t2 : t1) / lengthOfRaySquared;
+			}
+		}
+	}
+}
@@ -1,16 +1,35 @@
 package tracer;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import tracer.objects.Material;
+import tracer.objects.MoveListener;
 import tracer.objects.Plane;
 import tracer.objects.SceneObject;
 import tracer.objects.Sphere;
 
-public class Scene {
+public class Scene implements MoveListener {
+	/**
+	 * Refitted hierarchies are rebuilt in the background once their node
+	 * boxes have grown by this factor
+	 */
+	private static final double REBUILD_DEGRADATION = 1.5;
 
 	private ArrayList<SceneObject> objects = new ArrayList<SceneObject>();
 
+	//objects without bounds can't go into the hierarchy and are tested one by one
+	private ArrayList<SceneObject> unboundedObjects = new ArrayList<SceneObject>();
+	private BoundingVolumeHierarchy hierarchy;
+
+	//dynamic: refit the hierarchy for moved objects, static: rebuild it
+	private boolean dynamic = true;
+	private boolean moved;
+	private int geometryVersion;
+	private FutureTask<BoundingVolumeHierarchy> rebuild;
+
 	public final V3 light = new V3();
 
 	private SceneObject sphere1;
@@ -39,23 +58,168 @@ public class Scene {
 		floor.setMin(new V3(-5, -5, -5));
 		floor.setMax(new V3(5, 5, 5));
 
-		objects.add(floor);
-		objects.add(sphere1);
-		objects.add(sphere2);
-		objects.add(sphere3);
+		add(floor);
+		add(sphere1);
+		add(sphere2);
+		add(sphere3);
 		
 		light.set(-15, -3, 20);
+
+		buildHierarchy();
 	}
 
 	public void animate() {
 		sphere1.translate(move1);
 		bounceBorder(sphere1.getPos(), move1, 2);
 	}
+
+	/**
+	 * Circles the light around the vertical axis, the objects stay put.
+	 */
+	public void animateLight() {
+		light.rotate(View.VERTICAL_AXIS, 0.05);
+	}
+
+	public void add(SceneObject object) {
+		objects.add(object);
+		object.setMoveListener(this);
+		moved = true;
+		geometryVersion++;
+	}
+
+	@Override
+	public void objectMoved(SceneObject object) {
+		geometryVersion++;
+		if (dynamic) {
+			hierarchy.markMoved(object);
+		} else {
+			moved = true;
+		}
+	}
+
+	/**
+	 * @return a number that changes whenever an object is added or moved
+	 */
+	public int getGeometryVersion() {
+		return geometryVersion;
+	}
+
+	/**
+	 * Lets the objects cache what only depends on the camera, for the
+	 * primary rays of the coming frame.
+	 */
+	public void prepare(V3 camera) {
+		for (int i = 0; i < objects.size(); i++) {
+			objects.get(i).prepare(camera);
+		}
+	}
+
+	public void setDynamic(boolean dynamic) {
+		this.dynamic = dynamic;
+	}
 	
 	public ArrayList<SceneObject> getSceneObjects() {
 		return objects;
 	}
 
+	public ArrayList<SceneObject> getUnboundedObjects() {
+		return unboundedObjects;
+	}
+
+	public BoundingVolumeHierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * Sorts the objects into the bounding volume hierarchy and the list of
+	 * unbounded objects. Must be called again after objects have moved.
+	 */
+	public void buildHierarchy() {
+		final ArrayList<SceneObject> bounded = new ArrayList<SceneObject>();
+		final V3 min = new V3();
+		final V3 max = new V3();
+
+		unboundedObjects.clear();
+		for (SceneObject object : objects) {
+			if (object.getBounds(min, max)) {
+				bounded.add(object);
+			} else {
+				unboundedObjects.add(object);
+			}
+		}
+
+		hierarchy = new BoundingVolumeHierarchy(bounded);
+		moved = false;
+
+		//a background rebuild still running has a snapshot without the added objects
+		if (rebuild != null) {
+			rebuild.cancel(true);
+			rebuild = null;
+		}
+	}
+
+	/**
+	 * Brings the hierarchy up to date with moved objects, must be called
+	 * before each frame is traced.
+	 */
+	public void updateHierarchy() {
+		if (moved) {
+			buildHierarchy();
+			return;
+		}
+
+		if (!dynamic) {
+			return;
+		}
+
+		if (rebuild != null && rebuild.isDone()) {
+			try {
+				hierarchy = rebuild.get();
+				hierarchy.refitAll();
+				rebuild = null;
+			} catch (InterruptedException e) {
+				//keep the finished rebuild for the next frame
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		hierarchy.refit();
+
+		if (rebuild == null && hierarchy.getDegradation() > REBUILD_DEGRADATION) {
+			startRebuild();
+		}
+	}
+
+	private void startRebuild() {
+		final ArrayList<SceneObject> bounded = new ArrayList<SceneObject>();
+		final V3 min = new V3();
+		final V3 max = new V3();
+
+		for (SceneObject object : objects) {
+			if (object.getBounds(min, max)) {
+				bounded.add(object);
+			}
+		}
+
+		//the bounds are copied here, objects keep moving while the build runs
+		final SceneObject[] snapshot = bounded.toArray(new SceneObject[bounded.size()]);
+		final double[] snapshotBounds = BoundingVolumeHierarchy.snapshotBounds(bounded);
+
+		rebuild = new FutureTask<BoundingVolumeHierarchy>(new Callable<BoundingVolumeHierarchy>() {
+
+			@Override
+			public BoundingVolumeHierarchy call() {
+				return new BoundingVolumeHierarchy(snapshot, snapshotBounds);
+			}
+		});
+
+		Thread builder = new Thread(rebuild, "BVH rebuild");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
 	private void bounceBorder(V3 pos, V3 move, double rad) {
 		if ((pos.x < -5 + rad && move.x < 0) || (pos.x > 5 - rad && move.x > 0)) {
 			move.x = -move.x;
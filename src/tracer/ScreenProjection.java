@@ -0,0 +1,120 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+/**
+ * Finds the screen tiles a box in the scene covers, from the projected
+ * corners of the box. The result errs towards too many tiles.
+ */
+public class ScreenProjection {
+	//pixels the projected areas are widened by, to cover rounding and samples between pixels
+	private static final int MARGIN = 2;
+
+	private View view;
+	private int halfWidth;
+	private int halfHeight;
+	private int tileSize;
+	private int tilesX;
+	private int tilesY;
+
+	private final V3 d = new V3();
+	private final double[] area = new double[4];
+
+	//the covered tiles, inclusive, set by project()
+	public int tileX0;
+	public int tileY0;
+	public int tileX1;
+	public int tileY1;
+
+	public void setFrame(View view, int width, int height, int tileSize, int tilesX, int tilesY) {
+		this.view = view;
+		this.halfWidth = width >> 1;
+		this.halfHeight = height >> 1;
+		this.tileSize = tileSize;
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+	}
+
+	/**
+	 * Projects the corners of a box. With a light, the shadow volume is
+	 * projected instead: the corners and the vanishing points of the rays
+	 * from the light through them.
+	 *
+	 * @return false if part of the area lies behind the camera, then it may
+	 *         cover any tile
+	 */
+	public boolean project(double x0, double y0, double z0, double x1, double y1, double z1, V3 light) {
+		if (light != null && light.x >= x0 && light.x <= x1 && light.y >= y0 && light.y <= y1 && light.z >= z0 && light.z <= z1) {
+			return false;
+		}
+
+		area[0] = Double.MAX_VALUE;
+		area[1] = Double.MAX_VALUE;
+		area[2] = -Double.MAX_VALUE;
+		area[3] = -Double.MAX_VALUE;
+
+		for (int corner = 0; corner < 8; corner++) {
+			final double x = (corner & 1) == 0 ? x0 : x1;
+			final double y = (corner & 2) == 0 ? y0 : y1;
+			final double z = (corner & 4) == 0 ? z0 : z1;
+
+			d.set(x, y, z).sub(view.camera);
+			if (!addPoint(d)) {
+				return false;
+			}
+
+			if (light != null) {
+				d.set(x, y, z).sub(light);
+				if (!addPoint(d)) {
+					return false;
+				}
+			}
+		}
+
+		final double limit = 1E9;
+		final int col0 = (int) Math.floor(Math.max(area[0], -limit)) - MARGIN;
+		final int row0 = (int) Math.floor(Math.max(area[1], -limit)) - MARGIN;
+		final int col1 = (int) Math.ceil(Math.min(area[2], limit)) + MARGIN;
+		final int row1 = (int) Math.ceil(Math.min(area[3], limit)) + MARGIN;
+
+		tileX0 = Math.max(0, Math.floorDiv(col0, tileSize));
+		tileY0 = Math.max(0, Math.floorDiv(row0, tileSize));
+		tileX1 = Math.min(tilesX - 1, Math.floorDiv(col1, tileSize));
+		tileY1 = Math.min(tilesY - 1, Math.floorDiv(row1, tileSize));
+
+		return true;
+	}
+
+	/**
+	 * Adds a direction from the camera to the projected area.
+	 *
+	 * @return false if it doesn't point in front of the camera
+	 */
+	private boolean addPoint(V3 d) {
+		final V3 forward = view.cameraToLookAt;
+		final double depth = V3.dot(d, forward);
+
+		if (depth <= 1E-6 * Math.sqrt(d.length2() * forward.length2())) {
+			return false;
+		}
+
+		//solves d = s * (forward + x * horz + y * vert) for the screen position
+		final double s = depth / forward.length2();
+		final double x = V3.dot(d, view.horz) / (s * view.horz.length2());
+		final double y = V3.dot(d, view.vert) / (s * view.vert.length2());
+
+		final double col = x + halfWidth;
+		final double row = halfHeight - y;
+
+		area[0] = Math.min(area[0], col);
+		area[1] = Math.min(area[1], row);
+		area[2] = Math.max(area[2], col);
+		area[3] = Math.max(area[3], row);
+
+		return true;
+	}
+}
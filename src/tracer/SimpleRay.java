@@ -24,7 +24,24 @@ public class SimpleRay {
 	private static final String title = "HjM's SimpleRay Demo r6";
 
 	public static void main(String[] args) {
-	    SimpleRay app = new SimpleRay();
+		boolean incremental = false;
+		double targetMillis = 0;
+		boolean preload = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-incremental")) {
+				incremental = true;
+			} else if (args[i].equals("-preload")) {
+				preload = true;
+			} else if (args[i].equals("-target-ms") && i + 1 < args.length) {
+				targetMillis = Double.parseDouble(args[++i]);
+			} else {
+				System.err.println("Usage: SimpleRay [-incremental] [-target-ms N] [-preload]");
+				System.exit(1);
+			}
+		}
+
+	    SimpleRay app = new SimpleRay(incremental, targetMillis, preload);
 		app.start();
 	}
 
@@ -34,7 +51,12 @@ public class SimpleRay {
 	private Scene scene;
 	private View view;
 	
-	public SimpleRay() {
+	/**
+	 * @param incremental re-trace only the tiles changed by moving objects
+	 * @param targetMillis frame time to keep by lowering the resolution, 0 for full resolution
+	 * @param preload decode all textures before the first frame
+	 */
+	public SimpleRay(boolean incremental, double targetMillis, boolean preload) {
 		frame = new JFrame(title);
 		frame.setLayout(new BorderLayout());
 		frame.setSize(800, 600);
@@ -44,37 +66,36 @@ public class SimpleRay {
 
 			@Override
 			public void keyPressed(KeyEvent e) {
-				synchronized (view) {
-					switch(e.getKeyCode()) {
-						case KeyEvent.VK_UP:
-							if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
-								view.lookUp();
-							} else {
-								view.zoomIn();
-							}
-							break;
-						case KeyEvent.VK_DOWN:
-							if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
-								view.lookDown();
-							} else {
-								view.zoomOut();
-							}
-							break;
-						case KeyEvent.VK_LEFT:
-							if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
-								view.lookLeft();
-							} else {
-								view.rotateLeft();
-							}
-							break;
-						case KeyEvent.VK_RIGHT:
-							if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
-								view.lookRight();
-							} else {
-								view.rotateRight();
-							}
-							break;
-					}
+				//the move is queued, the frame being traced is dropped
+				switch(e.getKeyCode()) {
+					case KeyEvent.VK_UP:
+						if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
+							tracer.postMove(View.Move.LOOK_UP);
+						} else {
+							tracer.postMove(View.Move.ZOOM_IN);
+						}
+						break;
+					case KeyEvent.VK_DOWN:
+						if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
+							tracer.postMove(View.Move.LOOK_DOWN);
+						} else {
+							tracer.postMove(View.Move.ZOOM_OUT);
+						}
+						break;
+					case KeyEvent.VK_LEFT:
+						if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
+							tracer.postMove(View.Move.LOOK_LEFT);
+						} else {
+							tracer.postMove(View.Move.ROTATE_LEFT);
+						}
+						break;
+					case KeyEvent.VK_RIGHT:
+						if(e.getModifiers() == KeyEvent.SHIFT_MASK) {
+							tracer.postMove(View.Move.LOOK_RIGHT);
+						} else {
+							tracer.postMove(View.Move.ROTATE_RIGHT);
+						}
+						break;
 				}
 			}
 		
@@ -88,11 +109,14 @@ public class SimpleRay {
 		scene = new Scene();
 		view = new View();
 		tracer = new TracerCoordinator(displayPanel, scene, view);
+		tracer.setIncremental(incremental);
+		tracer.setTargetFrameMillis(targetMillis);
+		if (preload) {
+			Textures.getCache().preload();
+		}
 	}
 
 	public void start() {
-		Textures.init();
-
 		Graphics gr = displayPanel.getGraphics();
 
 		int frameCount = 0;
@@ -103,12 +127,17 @@ public class SimpleRay {
 			final long t = System.nanoTime();
 			final long deltaM = (t - t1);
 
-			if (deltaM > 17000000) {
+			//a camera move restarts the frame at once
+			if (deltaM > 17000000 || tracer.isCancelled()) {
 				t1 = t;
+
+				//the scene may only change while no frame is traced
+				tracer.awaitFrame();
 				scene.animate();
 				view.animate();
-				tracer.nextFrame();
+				tracer.startFrame();
 
+				//show the last frame while the next one is traced
 				displayPanel.paint(gr);
 
 				frameCount++;
@@ -0,0 +1,66 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Intersects a ray with a run of packed spheres at once. All kernels must
+ * return exactly what Sphere.distanceToIntersection() returns.
+ * 
+ * The kernel is chosen with -Dtracer.spheres=objects|scalar|vector:
+ * objects, the default, doesn't pack spheres at all. vector needs the JVM
+ * to be started with --add-modules jdk.incubator.vector and falls back to
+ * scalar without it.
+ */
+public abstract class SphereKernel {
+	/**
+	 * Largest run handed to a kernel in one call
+	 */
+	public static final int MAX_RUN = 8;
+
+	private static SphereKernel current = create(System.getProperty("tracer.spheres", "objects"));
+
+	/**
+	 * @return the selected kernel, or null if spheres aren't packed
+	 */
+	public static SphereKernel current() {
+		return current;
+	}
+
+	/**
+	 * Selects the kernel used by hierarchies built from now on.
+	 */
+	public static void select(String name) {
+		current = create(name);
+	}
+
+	private static SphereKernel create(String name) {
+		if (name.equals("objects")) {
+			return null;
+		}
+
+		if (name.equals("vector")) {
+			try {
+				return (SphereKernel) Class.forName("tracer.VectorSphereKernel").getDeclaredConstructor().newInstance();
+			} catch (Exception | LinkageError e) {
+				Logger.getLogger(SphereKernel.class.getName()).log(Level.WARNING, "Vector API not available, using the scalar sphere kernel", e);
+			}
+		} else if (!name.equals("scalar")) {
+			throw new IllegalArgumentException("Unknown sphere kernel " + name);
+		}
+
+		return new ScalarSphereKernel();
+	}
+
+	/**
+	 * Writes the distance to spheres first to first + count - 1 into
+	 * distances[0] to distances[count - 1], Double.MAX_VALUE for misses.
+	 */
+	public abstract void intersect(PackedSpheres spheres, int first, int count, V3 camera, V3 ray, double[] distances);
+}
@@ -0,0 +1,336 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * The sprites of a tile catalog, packed into one shared texture.
+ *
+ * Next to the colours the atlas keeps a coverage mask with one bit per
+ * texel, set where the texel is opaque. Alpha tests read a single bit
+ * instead of sampling the texture, and the mask of a whole atlas row fits
+ * a few cache lines.
+ *
+ * The atlas is not paged by the TextureCache. Rays test the mask of any
+ * sprite at any time, so all of it stays resident and isn't counted in the
+ * texture budget.
+ */
+public class SpriteAtlas {
+	public static final int WIDTH = 2048;
+
+	//longs per row of the coverage mask
+	private static final int MASK_STRIDE = WIDTH / 64;
+
+	//texels with less alpha are transparent
+	private static final int ALPHA_THRESHOLD = 128;
+
+	public static class Sprite {
+		public final int id;
+		public final String name;
+		public final String tags;
+
+		//area in the atlas
+		public final int x;
+		public final int y;
+		public final int width;
+		public final int height;
+
+		//the point of the image that stands on the ground
+		public final int footX;
+		public final int footY;
+
+		Sprite(int id, String name, String tags, int x, int y, int width, int height, int footX, int footY) {
+			this.id = id;
+			this.name = name;
+			this.tags = tags;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.footX = footX;
+			this.footY = footY;
+		}
+	}
+
+	private final int height;
+	private final int[] rgb;
+	private final long[] mask;
+	private final ArrayList<Sprite> sprites;
+
+	private SpriteAtlas(int height, int[] rgb, long[] mask, ArrayList<Sprite> sprites) {
+		this.height = height;
+		this.rgb = rgb;
+		this.mask = mask;
+		this.sprites = sprites;
+	}
+
+	/**
+	 * Loads a tile catalog zip, with the images named "index,id,Name.png"
+	 * and their foot points in catalog.xml. Images without any opaque texel
+	 * are left out. The images are decoded in parallel, like the textures in
+	 * TextureCache.preload().
+	 */
+	public static SpriteAtlas load(File file) throws IOException {
+		final ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+		final ArrayList<Integer> entryIds = new ArrayList<Integer>();
+		final HashMap<Integer, Element> descriptions = new HashMap<Integer, Element>();
+
+		final ZipFile zip = new ZipFile(file);
+		try {
+			final Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry entry = entries.nextElement();
+				final String name = entry.getName();
+
+				if (name.equals("catalog.xml")) {
+					readCatalog(zip, entry, descriptions);
+				} else if (name.endsWith(".png")) {
+					final String[] parts = name.split(",", 3);
+					if (parts.length < 3) {
+						continue;
+					}
+
+					encoded.add(readBytes(zip, entry));
+					entryIds.add(Integer.parseInt(parts[1]));
+				}
+			}
+		} finally {
+			zip.close();
+		}
+
+		//decoding takes most of the time and the images don't depend on each other
+		final ArrayList<BufferedImage> images = new ArrayList<BufferedImage>();
+		final ArrayList<Integer> ids = new ArrayList<Integer>();
+		final ExecutorService decoders = TextureCache.newDecoders(encoded.size());
+		try {
+			final ArrayList<Future<BufferedImage>> decoded = new ArrayList<Future<BufferedImage>>();
+			for (final byte[] bytes : encoded) {
+				decoded.add(decoders.submit(new Callable<BufferedImage>() {
+					@Override
+					public BufferedImage call() throws IOException {
+						final BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+						return image != null && isVisible(image) ? image : null;
+					}
+				}));
+			}
+
+			for (int i = 0; i < decoded.size(); i++) {
+				final BufferedImage image = decoded.get(i).get();
+				if (image != null) {
+					images.add(image);
+					ids.add(entryIds.get(i));
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decoding " + file);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException("Can't decode a sprite of " + file, ex.getCause());
+		} finally {
+			decoders.shutdown();
+		}
+
+		//shelf packing, tallest first so the shelves waste little
+		final Integer[] order = new Integer[images.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return images.get(b).getHeight() - images.get(a).getHeight();
+			}
+		});
+
+		final int[] atlasX = new int[images.size()];
+		final int[] atlasY = new int[images.size()];
+		int shelfX = 0;
+		int shelfY = 0;
+		int shelfHeight = 0;
+
+		for (int i : order) {
+			final BufferedImage image = images.get(i);
+			if (image.getWidth() > WIDTH) {
+				throw new IOException("Sprite " + ids.get(i) + " is wider than the atlas");
+			}
+
+			if (shelfX + image.getWidth() > WIDTH) {
+				shelfY += shelfHeight;
+				shelfX = 0;
+				shelfHeight = 0;
+			}
+
+			atlasX[i] = shelfX;
+			atlasY[i] = shelfY;
+			shelfX += image.getWidth();
+			shelfHeight = Math.max(shelfHeight, image.getHeight());
+		}
+
+		final int height = shelfY + shelfHeight;
+		final int[] rgb = new int[WIDTH * height];
+		final long[] mask = new long[MASK_STRIDE * height];
+		final ArrayList<Sprite> sprites = new ArrayList<Sprite>();
+
+		for (int i = 0; i < images.size(); i++) {
+			final BufferedImage image = images.get(i);
+			final int w = image.getWidth();
+			final int h = image.getHeight();
+			image.getRGB(0, 0, w, h, rgb, atlasY[i] * WIDTH + atlasX[i], WIDTH);
+
+			for (int y = atlasY[i]; y < atlasY[i] + h; y++) {
+				for (int x = atlasX[i]; x < atlasX[i] + w; x++) {
+					if (rgb[y * WIDTH + x] >>> 24 >= ALPHA_THRESHOLD) {
+						mask[y * MASK_STRIDE + (x >> 6)] |= 1L << (x & 63);
+					}
+				}
+			}
+
+			//sprites missing in the catalog stand on their bottom centre
+			final Element description = descriptions.get(ids.get(i));
+			String name = "";
+			String tags = "";
+			int footX = w / 2;
+			int footY = h - 1;
+
+			if (description != null) {
+				footX = Integer.parseInt(text(description, "footX", "" + footX));
+				footY = Integer.parseInt(text(description, "footY", "" + footY));
+				final NodeList strings = description.getElementsByTagName("string");
+				if (strings.getLength() >= 2) {
+					name = strings.item(0).getTextContent();
+					tags = strings.item(1).getTextContent();
+				}
+			}
+
+			sprites.add(new Sprite(ids.get(i), name, tags, atlasX[i], atlasY[i], w, h, footX, footY));
+		}
+
+		Collections.sort(sprites, new Comparator<Sprite>() {
+			@Override
+			public int compare(Sprite a, Sprite b) {
+				return a.id - b.id;
+			}
+		});
+
+		return new SpriteAtlas(height, rgb, mask, sprites);
+	}
+
+	private static byte[] readBytes(ZipFile zip, ZipEntry entry) throws IOException {
+		final InputStream in = zip.getInputStream(entry);
+		try {
+			return in.readAllBytes();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Collects the Tile elements of the catalog by id.
+	 */
+	private static void readCatalog(ZipFile zip, ZipEntry entry, HashMap<Integer, Element> descriptions) throws IOException {
+		final InputStream in = zip.getInputStream(entry);
+		try {
+			final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+			final NodeList tiles = document.getElementsByTagName("Tile");
+
+			for (int i = 0; i < tiles.getLength(); i++) {
+				final Element tile = (Element) tiles.item(i);
+				final String id = text(tile, "id", null);
+				if (id != null) {
+					descriptions.put(Integer.parseInt(id), tile);
+				}
+			}
+		} catch (ParserConfigurationException ex) {
+			throw new IOException(ex);
+		} catch (SAXException ex) {
+			throw new IOException("Broken catalog in " + zip.getName(), ex);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String text(Element element, String tag, String fallback) {
+		final NodeList nodes = element.getElementsByTagName(tag);
+		return nodes.getLength() > 0 ? nodes.item(0).getTextContent().trim() : fallback;
+	}
+
+	private static boolean isVisible(BufferedImage image) {
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				if (image.getRGB(x, y) >>> 24 >= ALPHA_THRESHOLD) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the sprites sorted by id
+	 */
+	public ArrayList<Sprite> getSprites() {
+		return sprites;
+	}
+
+	/**
+	 * @return the named sprites with the tag, e.g. "type:tree"
+	 */
+	public ArrayList<Sprite> findSprites(String tag) {
+		final ArrayList<Sprite> result = new ArrayList<Sprite>();
+		for (Sprite sprite : sprites) {
+			if (!sprite.name.isEmpty() && sprite.tags.contains(tag)) {
+				result.add(sprite);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the atlas texel is opaque
+	 */
+	public final boolean covers(int x, int y) {
+		return (mask[y * MASK_STRIDE + (x >> 6)] & 1L << (x & 63)) != 0;
+	}
+
+	public final int getRGB(int x, int y) {
+		return rgb[y * WIDTH + x];
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
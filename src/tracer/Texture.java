@@ -9,37 +9,171 @@
 
 package tracer;
 
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * Texture (argb) storage.
  * 
+ * The texels live in pages of a TextureCache, which decodes the image once
+ * into a mapped page file and copies pages out of it on a miss. Besides the image the texture has a
+ * chain of mip levels, each half the size of the one before. Callers pick
+ * the level from the size of the hit area, see getLevel(). Within a page
+ * the texels are in Morton order, so texels that are close in the image
+ * are mostly close in memory too, in both directions.
+ * 
  * @author Hj. Malthaner
  */
 public class Texture
 {
+    /**
+     * Where the image of a texture is read from, opened when the cache
+     * decodes it.
+     */
+    public interface Source
+    {
+        public InputStream open() throws IOException;
+    }
+
+    private final TextureCache cache;
+    private final String name;
+    private final Source source;
+
     private final int width;
     private final int height;
-    private final int [] rgb;
-    
-    public Texture(BufferedImage img)
+
+    //size, pages per row and first page of each mip level
+    private final int [] levelWidth;
+    private final int [] levelHeight;
+    private final int [] levelPagesX;
+    private final int [] levelPage;
+
+    private final AtomicReferenceArray<int []> pages;
+    //set on each read, cleared by the clock hand of the cache
+    private final AtomicIntegerArray used;
+    private int residentPages;
+
+    //all pages, mapped from the page file of the TextureCache
+    private IntBuffer mapped;
+
+    Texture(TextureCache cache, String name, Source source) throws IOException
     {
-        width = img.getWidth();
-        height = img.getHeight();
-        rgb = new int[width * height];
-                
-        img.getRGB(0, 0, width, height, rgb, 0, width);
+        this.cache = cache;
+        this.name = name;
+        this.source = source;
+
+        final InputStream in = source.open();
+        try
+        {
+            final ImageInputStream stream = ImageIO.createImageInputStream(in);
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext())
+            {
+                throw new IOException("Unknown image format in texture " + name);
+            }
+
+            final ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(stream, true, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            }
+            finally
+            {
+                reader.dispose();
+                stream.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        int levels = 1;
+        while ((width >> levels) > 0 || (height >> levels) > 0)
+        {
+            levels++;
+        }
+
+        levelWidth = new int[levels];
+        levelHeight = new int[levels];
+        levelPagesX = new int[levels];
+        levelPage = new int[levels];
+
+        int pageCount = 0;
+        for (int level = 0; level < levels; level++)
+        {
+            levelWidth[level] = Math.max(1, width >> level);
+            levelHeight[level] = Math.max(1, height >> level);
+            levelPagesX[level] = (levelWidth[level] + TextureCache.PAGE_MASK) >> TextureCache.PAGE_BITS;
+            levelPage[level] = pageCount;
+            pageCount += levelPagesX[level] * ((levelHeight[level] + TextureCache.PAGE_MASK) >> TextureCache.PAGE_BITS);
+        }
+
+        pages = new AtomicReferenceArray<int []>(pageCount);
+        used = new AtomicIntegerArray(pageCount);
     }
     
     
+    /**
+     * @param texels the size of the hit area in texels of the full image
+     * @return the mip level where the area is about one texel
+     */
+    public final int getLevel(double texels)
+    {
+        if (!(texels >= 2))
+        {
+            return 0;
+        }
+
+        return Math.min(levelWidth.length - 1, Math.getExponent(texels));
+    }
+
     public final int getRGB(int x, int y)
     {
-        return rgb[y*width + x];
+        return getRGB(x, y, 0);
+    }
+
+    /**
+     * @param x column in the mip level, between 0 and getWidth(level)
+     * @param y row in the mip level
+     */
+    public final int getRGB(int x, int y, int level)
+    {
+        final int page = levelPage[level] + (y >> TextureCache.PAGE_BITS) * levelPagesX[level] + (x >> TextureCache.PAGE_BITS);
+
+        int [] texels = pages.get(page);
+        if (texels == null)
+        {
+            texels = cache.load(this, page);
+        }
+
+        //written once per sweep of the clock hand, a lost mark only makes the page look unused
+        if (used.getOpaque(page) == 0)
+        {
+            used.setOpaque(page, 1);
+        }
+
+        return texels[TextureCache.morton(x, y)];
     }
 
     public final int getRGB(double s, double t)
     {
-        return rgb[width * (int)(t*height) + (int)(s*width)];
+        return getRGB((int)(s*width), (int)(t*height));
+    }
+
+    public final int getRGB(double s, double t, int level)
+    {
+        return getRGB((int)(s*levelWidth[level]), (int)(t*levelHeight[level]), level);
     }
 
     public final int getWidth()
@@ -51,4 +185,95 @@ public class Texture
     {
         return height;
     }
+
+    public final int getWidth(int level)
+    {
+        return levelWidth[level];
+    }
+
+    public final int getHeight(int level)
+    {
+        return levelHeight[level];
+    }
+
+    public int getLevels()
+    {
+        return levelWidth.length;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    Source getSource()
+    {
+        return source;
+    }
+
+    int getPagesX(int level)
+    {
+        return levelPagesX[level];
+    }
+
+    int getFirstPage(int level)
+    {
+        return levelPage[level];
+    }
+
+    int getPageCount()
+    {
+        return used.length();
+    }
+
+    int getResidentPages()
+    {
+        return residentPages;
+    }
+
+    int [] getPage(int page)
+    {
+        return pages.get(page);
+    }
+
+    /**
+     * @return true if the page was read since the last call
+     */
+    boolean takeUsed(int page)
+    {
+        if (used.getOpaque(page) == 0)
+        {
+            return false;
+        }
+
+        used.setOpaque(page, 0);
+        return true;
+    }
+
+    IntBuffer getMapped()
+    {
+        return mapped;
+    }
+
+    /**
+     * Called by the cache with its lock held.
+     */
+    void setMapped(IntBuffer mapped)
+    {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Called by the cache with its lock held.
+     */
+    void setPage(int page, int [] texels, boolean read)
+    {
+        if ((pages.get(page) == null) != (texels == null))
+        {
+            residentPages += texels == null ? -1 : 1;
+        }
+
+        used.setOpaque(page, read ? 1 : 0);
+        pages.set(page, texels);
+    }
 }
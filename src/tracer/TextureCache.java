@@ -0,0 +1,670 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Holds the texels of the textures in pages of 64x64, up to a memory
+ * budget.
+ *
+ * A texture is decoded once, when one of its pages is first read or by
+ * preload() before the first frame. The decoder writes the pages of the
+ * image and of its mip levels into a file and maps it, each level filtered
+ * from the one before with a 2x2 box. The image is decoded in bands of
+ * rows, so it never has to fit the heap as a whole. A miss copies one page
+ * out of the mapping, later misses of a texture don't decode again. The
+ * mapped files are left to the page cache of the system and don't count
+ * against the budget. The files go to the disk cache directory if one is
+ * set, later runs map them instead of decoding, otherwise to a temporary
+ * directory that is removed on exit. Only if no file can be written the
+ * pages are decoded to the heap, and each miss decodes the image again.
+ *
+ * Along with the requested page the first decode copies as many other
+ * pages as fit the budget, those count as not used yet. Textures mark
+ * their pages on each read, without any locking. Once the resident pages
+ * exceed the budget, a clock hand sweeps them: a page read since the hand
+ * last passed it is unmarked and kept for another round, the others are
+ * dropped. Reads are not counted here, the tracer threads count their own,
+ * see TraceResult.textureReads.
+ */
+public class TextureCache {
+	public static final int PAGE_BITS = 6;
+	public static final int PAGE_SIZE = 1 << PAGE_BITS;
+	public static final int PAGE_MASK = PAGE_SIZE - 1;
+	public static final int PAGE_INTS = PAGE_SIZE * PAGE_SIZE;
+	public static final long PAGE_BYTES = PAGE_INTS * 4;
+
+	//disk cache files start with magic, version, page bits, width, height and the CRC of the image
+	private static final int MAGIC = 0x53525458;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+
+	//eviction frees a bit more than needed, so it doesn't run on every miss
+	private static final double EVICT_TO = 0.9;
+
+	//bytes of texels decoded at once, a band is at least one row of pages
+	private static final int BAND_BYTES = 16 << 20;
+
+	//shown where a page can't be decoded
+	private static final int BROKEN = 0xFFFF00FF;
+
+	//the bits of a page coordinate spread to the even bits, for Morton order
+	private static final int[] SPREAD = new int[PAGE_SIZE];
+
+	static {
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			for (int bit = 0; bit < PAGE_BITS; bit++) {
+				SPREAD[i] |= (i >> bit & 1) << (2 * bit);
+			}
+		}
+	}
+
+	private long budget;
+	private volatile File directory;
+	private long residentBytes;
+	private final ArrayList<Texture> textures = new ArrayList<Texture>();
+
+	//where the pages go without a disk cache directory, removed on exit
+	private File scratch;
+	private boolean scratchFailed;
+
+	//the resident pages in no particular order, swept by the clock hand
+	private Texture[] ringTextures = new Texture[256];
+	private int[] ringPages = new int[256];
+	private int ringSize;
+	private int hand;
+
+	//reads in progress, decoding outside the lock
+	private final HashMap<Texture, FutureTask<IntBuffer>> reads = new HashMap<Texture, FutureTask<IntBuffer>>();
+
+	private long misses;
+	private long evictions;
+
+	public TextureCache(long budgetBytes) {
+		this.budget = budgetBytes;
+	}
+
+	public synchronized void setBudget(long budgetBytes) {
+		this.budget = budgetBytes;
+		evict(null, -1);
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Keeps the decoded pages of each texture in a file in the directory,
+	 * which later runs map instead of decoding the image again. The files
+	 * are checked against the image and rewritten when it changed.
+	 *
+	 * @param directory null to decode every run
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Creates a texture that reads its image from the source on first use.
+	 * Only the header is read here, for the size.
+	 */
+	public Texture create(String name, Texture.Source source) throws IOException {
+		final Texture texture = new Texture(this, name, source);
+
+		synchronized (this) {
+			textures.add(texture);
+		}
+
+		return texture;
+	}
+
+	/**
+	 * @return the index of a texel within its page, in Morton order
+	 */
+	static int morton(int x, int y) {
+		return SPREAD[x & PAGE_MASK] | SPREAD[y & PAGE_MASK] << 1;
+	}
+
+	/**
+	 * Fills in a missing page. Mapped textures copy the page out of their
+	 * file, the others are decoded first. The decoding runs outside the lock, so threads missing other textures or
+	 * reading resident pages go on meanwhile. Threads missing the same
+	 * texture wait for the same read.
+	 *
+	 * @return the page
+	 */
+	int[] load(Texture texture, int page) {
+		final FutureTask<IntBuffer> read;
+		final boolean owner;
+
+		synchronized (this) {
+			//another thread may have loaded it while this one waited
+			final int[] loaded = texture.getPage(page);
+			if (loaded != null) {
+				return loaded;
+			}
+
+			misses++;
+
+			if (texture.getMapped() != null) {
+				store(texture, texture.getMapped(), page);
+				evict(texture, page);
+				return texture.getPage(page);
+			}
+
+			owner = !reads.containsKey(texture);
+			read = startRead(texture);
+		}
+
+		if (owner) {
+			read.run();
+		}
+		final IntBuffer texels = await(read);
+
+		synchronized (this) {
+			reads.remove(texture, read);
+			store(texture, texels, page);
+			evict(texture, page);
+			return texture.getPage(page);
+		}
+	}
+
+	/**
+	 * Decodes the textures that have nothing resident yet, in parallel on
+	 * one thread per core. Startup then waits for the slowest image instead
+	 * of the sum of all, and with a disk cache only for mapping the files.
+	 */
+	public void preload() {
+		final ArrayList<Texture> pending = new ArrayList<Texture>();
+		final ArrayList<FutureTask<IntBuffer>> started = new ArrayList<FutureTask<IntBuffer>>();
+		final ArrayList<FutureTask<IntBuffer>> owned = new ArrayList<FutureTask<IntBuffer>>();
+
+		synchronized (this) {
+			for (Texture texture : textures) {
+				if (texture.getMapped() == null && texture.getResidentPages() == 0) {
+					//a tracer thread may be reading it already
+					final boolean owner = !reads.containsKey(texture);
+					pending.add(texture);
+					started.add(startRead(texture));
+					if (owner) {
+						owned.add(started.get(started.size() - 1));
+					}
+				}
+			}
+		}
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		final ExecutorService executor = newDecoders(owned.size());
+		try {
+			for (FutureTask<IntBuffer> read : owned) {
+				executor.execute(read);
+			}
+
+			for (int i = 0; i < pending.size(); i++) {
+				final IntBuffer texels = await(started.get(i));
+
+				synchronized (this) {
+					reads.remove(pending.get(i), started.get(i));
+					store(pending.get(i), texels, -1);
+					evict(null, -1);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return a pool for decoding images, one thread per core but not more
+	 *         than images
+	 */
+	static ExecutorService newDecoders(int images) {
+		return Executors.newFixedThreadPool(Math.max(1, Math.min(images, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * Registers a read of the texture, or returns the one in progress. The
+	 * caller that registered it has to run it. Called with the lock held.
+	 */
+	private FutureTask<IntBuffer> startRead(final Texture texture) {
+		FutureTask<IntBuffer> read = reads.get(texture);
+
+		if (read == null) {
+			read = new FutureTask<IntBuffer>(new Callable<IntBuffer>() {
+				@Override
+				public IntBuffer call() {
+					return readTexels(texture);
+				}
+			});
+			reads.put(texture, read);
+		}
+
+		return read;
+	}
+
+	/**
+	 * Waits for a read, an interrupt is kept for the caller.
+	 */
+	private static IntBuffer await(FutureTask<IntBuffer> read) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return read.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				} catch (ExecutionException ex) {
+					throw new IllegalStateException("Can't read texture", ex.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Takes the pages read by readTexels(). The other pages are kept while
+	 * they fit the budget, they don't push out used ones. A texture mapped
+	 * before only copies the requested page.
+	 *
+	 * @param page the requested page, -1 for none
+	 */
+	private void store(Texture texture, IntBuffer texels, int page) {
+		//readTexels() only returns direct buffers for mapped files
+		final boolean mapped = texels.isDirect() && texture.getMapped() != null;
+		if (texels.isDirect()) {
+			texture.setMapped(texels);
+		}
+
+		for (int p = 0; p < texture.getPageCount(); p++) {
+			if (texture.getPage(p) != null || (p != page && (mapped || residentBytes + PAGE_BYTES > budget))) {
+				continue;
+			}
+
+			final int[] copy = new int[PAGE_INTS];
+			texels.get(p * PAGE_INTS, copy);
+
+			//only the requested page counts as used
+			texture.setPage(p, copy, p == page);
+			residentBytes += PAGE_BYTES;
+
+			if (ringSize == ringTextures.length) {
+				ringTextures = Arrays.copyOf(ringTextures, ringSize * 2);
+				ringPages = Arrays.copyOf(ringPages, ringSize * 2);
+			}
+			ringTextures[ringSize] = texture;
+			ringPages[ringSize] = p;
+			ringSize++;
+		}
+	}
+
+	/**
+	 * Reads all pages of a texture, mapped from the disk cache if it holds
+	 * the current image, otherwise decoded into a new file. Doesn't touch
+	 * the state of the cache, preload() runs it on several threads.
+	 *
+	 * @return the pages one after another, a direct buffer if mapped
+	 */
+	private IntBuffer readTexels(Texture texture) {
+		final long crc;
+		try {
+			crc = checksum(texture);
+		} catch (IOException ex) {
+			Logger.getLogger(TextureCache.class.getName()).log(Level.SEVERE, "Can't read texture " + texture.getName(), ex);
+			return broken(texture);
+		}
+
+		File directory = this.directory;
+		final String name = texture.getName().replaceAll("[^A-Za-z0-9._-]", "_") + ".argb";
+
+		if (directory != null) {
+			final IntBuffer mapped = map(texture, new File(directory, name), crc);
+			if (mapped != null) {
+				return mapped;
+			}
+		} else {
+			directory = getScratch();
+		}
+
+		if (directory != null) {
+			try {
+				return build(texture, new File(directory, name), crc, directory != this.directory);
+			} catch (IOException ex) {
+				Logger.getLogger(TextureCache.class.getName()).log(Level.WARNING, "Can't write the pages of " + texture.getName() + " to " + directory, ex);
+			}
+		}
+
+		final IntBuffer texels = IntBuffer.wrap(new int[texture.getPageCount() * PAGE_INTS]);
+		return decode(texture, texels) ? texels : broken(texture);
+	}
+
+	private static IntBuffer broken(Texture texture) {
+		final int[] texels = new int[texture.getPageCount() * PAGE_INTS];
+		Arrays.fill(texels, BROKEN);
+		return IntBuffer.wrap(texels);
+	}
+
+	private static long checksum(Texture texture) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[1 << 16];
+
+		final InputStream in = texture.getSource().open();
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		return crc.getValue();
+	}
+
+	/**
+	 * @return the directory for the pages of this run, null if there is none
+	 */
+	private synchronized File getScratch() {
+		if (scratch == null && !scratchFailed) {
+			try {
+				scratch = Files.createTempDirectory("textures").toFile();
+				scratch.deleteOnExit();
+			} catch (IOException ex) {
+				scratchFailed = true;
+				Logger.getLogger(TextureCache.class.getName()).log(Level.WARNING, "Can't create a directory for the texture pages", ex);
+			}
+		}
+
+		return scratch;
+	}
+
+	/**
+	 * Decodes a texture into a new page file and maps it. The file is
+	 * written under a temporary name and renamed, so other runs never map
+	 * half a file.
+	 *
+	 * @param temporary delete the file on exit
+	 * @return the pages, or broken ones if the image can't be decoded
+	 */
+	private static IntBuffer build(Texture texture, File file, long crc, boolean temporary) throws IOException {
+		final long size = HEADER_BYTES + texture.getPageCount() * PAGE_BYTES;
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("The pages of " + texture.getName() + " need more than 2 GB");
+		}
+
+		file.getParentFile().mkdirs();
+		final File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		boolean moved = false;
+		try {
+			final ByteBuffer buffer;
+			final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				//the mapping stays valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+			} finally {
+				channel.close();
+			}
+
+			buffer.position(HEADER_BYTES);
+			final IntBuffer pages = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			if (!decode(texture, pages)) {
+				return broken(texture);
+			}
+
+			buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, PAGE_BITS).putInt(12, texture.getWidth()).putInt(16, texture.getHeight()).putLong(20, crc);
+			((MappedByteBuffer) buffer).force();
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+			if (temporary) {
+				file.deleteOnExit();
+			}
+
+			return pages;
+		} finally {
+			if (!moved) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Decodes an image into its pages, then filters the mip levels from
+	 * them. The image is read in bands of rows, only one band is on the
+	 * heap at a time.
+	 *
+	 * @return false if the image is broken
+	 */
+	private static boolean decode(Texture texture, IntBuffer pages) {
+		final int width = texture.getWidth();
+		final int height = texture.getHeight();
+
+		try {
+			final InputStream in = texture.getSource().open();
+			try {
+				final ImageInputStream stream = ImageIO.createImageInputStream(in);
+				final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+				if (!readers.hasNext()) {
+					stream.close();
+					Logger.getLogger(TextureCache.class.getName()).log(Level.SEVERE, "Unknown image format in texture " + texture.getName());
+					return false;
+				}
+
+				final ImageReader reader = readers.next();
+				try {
+					reader.setInput(stream, false, true);
+					if (reader.getWidth(0) != width || reader.getHeight(0) != height) {
+						Logger.getLogger(TextureCache.class.getName()).log(Level.SEVERE, "Texture " + texture.getName() + " changed its size");
+						return false;
+					}
+
+					final int rows = Math.max(1, BAND_BYTES / PAGE_SIZE / 4 / width) * PAGE_SIZE;
+					final ImageReadParam param = reader.getDefaultReadParam();
+					int[] band = null;
+
+					for (int y0 = 0; y0 < height; y0 += rows) {
+						final int bandHeight = Math.min(rows, height - y0);
+						param.setSourceRegion(new Rectangle(0, y0, width, bandHeight));
+						band = reader.read(0, param).getRGB(0, 0, width, bandHeight, band, 0, width);
+
+						for (int y = 0; y < bandHeight; y++) {
+							for (int x = 0; x < width; x++) {
+								pages.put(index(texture, 0, x, y0 + y), band[y * width + x]);
+							}
+						}
+					}
+				} finally {
+					reader.dispose();
+					stream.close();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(TextureCache.class.getName()).log(Level.SEVERE, "Can't decode texture " + texture.getName(), ex);
+			return false;
+		}
+
+		for (int level = 1; level < texture.getLevels(); level++) {
+			downsample(texture, pages, level);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the position of a texel in the pages of the texture
+	 */
+	private static int index(Texture texture, int level, int x, int y) {
+		final int page = texture.getFirstPage(level) + (y >> PAGE_BITS) * texture.getPagesX(level) + (x >> PAGE_BITS);
+		return page * PAGE_INTS + morton(x, y);
+	}
+
+	/**
+	 * Maps the pages of a texture from its disk cache file.
+	 *
+	 * @return null if there is no file for this layout and image
+	 */
+	private static IntBuffer map(Texture texture, File file, long crc) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				final long size = HEADER_BYTES + texture.getPageCount() * PAGE_BYTES;
+				if (channel.size() != size) {
+					return null;
+				}
+
+				//the mapping stays valid after the channel is closed
+				final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != PAGE_BITS
+						|| buffer.getInt(12) != texture.getWidth() || buffer.getInt(16) != texture.getHeight() || buffer.getLong(20) != crc) {
+					return null;
+				}
+
+				buffer.position(HEADER_BYTES);
+				return buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			} finally {
+				channel.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(TextureCache.class.getName()).log(Level.WARNING, "Can't map " + file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Fills a mip level from the one before, each texel the average of a
+	 * 2x2 block, per channel. Levels of odd size repeat their last row or
+	 * column.
+	 */
+	private static void downsample(Texture texture, IntBuffer pages, int level) {
+		final int srcWidth = texture.getWidth(level - 1);
+		final int srcHeight = texture.getHeight(level - 1);
+		final int width = texture.getWidth(level);
+		final int height = texture.getHeight(level);
+
+		for (int y = 0; y < height; y++) {
+			final int y0 = Math.min(2 * y, srcHeight - 1);
+			final int y1 = Math.min(2 * y + 1, srcHeight - 1);
+
+			for (int x = 0; x < width; x++) {
+				final int x0 = Math.min(2 * x, srcWidth - 1);
+				final int x1 = Math.min(2 * x + 1, srcWidth - 1);
+				final int a = pages.get(index(texture, level - 1, x0, y0));
+				final int b = pages.get(index(texture, level - 1, x1, y0));
+				final int c = pages.get(index(texture, level - 1, x0, y1));
+				final int d = pages.get(index(texture, level - 1, x1, y1));
+
+				int argb = 0;
+				for (int shift = 0; shift < 32; shift += 8) {
+					final int sum = (a >>> shift & 0xFF) + (b >>> shift & 0xFF) + (c >>> shift & 0xFF) + (d >>> shift & 0xFF);
+					argb |= (sum + 2) >> 2 << shift;
+				}
+				pages.put(index(texture, level, x, y), argb);
+			}
+		}
+	}
+
+	/**
+	 * Drops pages until the resident ones fit the budget, except the given
+	 * one. The clock hand goes on where it stopped last time: a page read
+	 * since the hand passed it is unmarked and skipped, the others are
+	 * dropped. After two rounds the hand takes any page, the tracer threads
+	 * may mark pages faster than it unmarks them.
+	 */
+	private void evict(Texture keep, int keepPage) {
+		if (residentBytes <= budget) {
+			return;
+		}
+
+		final long target = (long) (budget * EVICT_TO);
+		int steps = 0;
+
+		while (residentBytes > target && ringSize > 0) {
+			if (hand >= ringSize) {
+				hand = 0;
+			}
+
+			final Texture texture = ringTextures[hand];
+			final int page = ringPages[hand];
+
+			if (texture == keep && page == keepPage) {
+				if (ringSize == 1) {
+					return;
+				}
+				hand++;
+			} else if (texture.takeUsed(page) && steps < 2 * ringSize) {
+				hand++;
+			} else {
+				texture.setPage(page, null, false);
+				residentBytes -= PAGE_BYTES;
+				evictions++;
+
+				//the last entry moves into the gap, the hand looks at it next
+				ringSize--;
+				ringTextures[hand] = ringTextures[ringSize];
+				ringPages[hand] = ringPages[ringSize];
+				ringTextures[ringSize] = null;
+			}
+			steps++;
+		}
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+}
@@ -8,33 +8,81 @@
  */
 package tracer;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.imageio.ImageIO;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
 
 /**
  * Sort of a texture cache.
  * 
+ * Textures are looked up by name once, e.g. when an object is created,
+ * and keep their texels in one shared TextureCache. Nothing is decoded
+ * before it is drawn or preloaded. Sprites are not textures, a SpriteAtlas
+ * decodes them all at once and keeps its texels on the heap, outside the
+ * budget of the cache.
+ * 
  * @author Hj. Malthaner
  */
 public class Textures {
-	public static Texture sand;
-	public static Texture clouds;
-	public static Texture leafs[];
-
-	public static void init() {
-		final String path = "/tracer/resources/";
-		leafs = new Texture[3];
-
-		try {
-			sand = new Texture(ImageIO.read(Class.class.getResource(path + "sand.jpg")));
-			clouds = new Texture(ImageIO.read(Class.class.getResource(path + "clouds.jpg")));
-			leafs[0] = new Texture(ImageIO.read(Class.class.getResource(path + "leaf_bw.png")));
-			leafs[1] = new Texture(ImageIO.read(Class.class.getResource(path + "leaf_heart_bw.png")));
-			leafs[2] = new Texture(ImageIO.read(Class.class.getResource(path + "petal_bw.png")));
-		} catch (IOException ex) {
-			Logger.getLogger(Textures.class.getName()).log(Level.SEVERE, null, ex);
+	public static final long DEFAULT_BUDGET = 64L << 20;
+
+	private static final String PATH = "/tracer/resources/";
+	private static final TextureCache cache = new TextureCache(DEFAULT_BUDGET);
+	private static final HashMap<String, Texture> textures = new HashMap<String, Texture>();
+
+	public static TextureCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return the texture of a resource that comes with the tracer, e.g.
+	 *         "sand.jpg"
+	 */
+	public static synchronized Texture get(final String name) {
+		Texture texture = textures.get(name);
+
+		if (texture == null) {
+			if (Textures.class.getResource(PATH + name) == null) {
+				throw new IllegalArgumentException("No texture " + name);
+			}
+
+			try {
+				texture = create(name, new Texture.Source() {
+					@Override
+					public InputStream open() throws IOException {
+						return Textures.class.getResourceAsStream(PATH + name);
+					}
+				});
+			} catch (IOException ex) {
+				throw new UncheckedIOException("Can't read texture " + name, ex);
+			}
 		}
+
+		return texture;
+	}
+
+	public static synchronized Texture fromFile(final File file) throws IOException {
+		final String key = "file:" + file.getAbsolutePath();
+		Texture texture = textures.get(key);
+
+		if (texture == null) {
+			texture = create(key, new Texture.Source() {
+				@Override
+				public InputStream open() throws IOException {
+					return new FileInputStream(file);
+				}
+			});
+		}
+
+		return texture;
+	}
+
+	private static Texture create(String key, Texture.Source source) throws IOException {
+		final Texture texture = cache.create(key, source);
+		textures.put(key, texture);
+		return texture;
 	}
 }
@@ -0,0 +1,124 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import tracer.objects.SceneObject;
+
+/**
+ * Lists for each screen tile the bounded objects a primary ray through it
+ * can hit, built once per frame from the projected object bounds.
+ *
+ * Tiles with few candidates test them directly, crowded tiles fall back
+ * to the hierarchy. Reflection and shadow rays always use the hierarchy.
+ */
+public class TileBins {
+	//tiles with more candidates than this are traced through the hierarchy
+	public static final int MAX_CANDIDATES = 8;
+
+	private final ScreenProjection projection = new ScreenProjection();
+	private final V3 min = new V3();
+	private final V3 max = new V3();
+
+	private int[] start = new int[1];
+	private int[] fill = new int[0];
+	private SceneObject[] candidates = new SceneObject[0];
+
+	//covered tile range of each bounded object, or -1 for all tiles
+	private SceneObject[] bounded = new SceneObject[0];
+	private int[] ranges = new int[0];
+
+	/**
+	 * Sorts the bounded objects into the tiles they may cover.
+	 */
+	public void update(Scene scene, View view, int width, int height, int tileSize, int tilesX, int tileCount) {
+		projection.setFrame(view, width, height, tileSize, tilesX, tileCount / tilesX);
+
+		final ArrayList<SceneObject> objects = scene.getSceneObjects();
+		if (bounded.length < objects.size()) {
+			bounded = new SceneObject[objects.size()];
+			ranges = new int[objects.size() * 4];
+		}
+		if (start.length != tileCount + 1) {
+			start = new int[tileCount + 1];
+			fill = new int[tileCount];
+		}
+
+		//count the objects per tile, start[tile + 1] is used as counter first
+		Arrays.fill(start, 0);
+		int n = 0;
+		for (int i = 0; i < objects.size(); i++) {
+			final SceneObject object = objects.get(i);
+			if (!object.getBounds(min, max)) {
+				continue;
+			}
+
+			final int r = n * 4;
+			bounded[n++] = object;
+
+			if (projection.project(min.x, min.y, min.z, max.x, max.y, max.z, null)) {
+				ranges[r] = projection.tileX0;
+				ranges[r + 1] = projection.tileY0;
+				ranges[r + 2] = projection.tileX1;
+				ranges[r + 3] = projection.tileY1;
+			} else {
+				ranges[r] = 0;
+				ranges[r + 1] = 0;
+				ranges[r + 2] = tilesX - 1;
+				ranges[r + 3] = tileCount / tilesX - 1;
+			}
+
+			for (int ty = ranges[r + 1]; ty <= ranges[r + 3]; ty++) {
+				for (int tx = ranges[r]; tx <= ranges[r + 2]; tx++) {
+					start[ty * tilesX + tx + 1]++;
+				}
+			}
+		}
+
+		for (int tile = 0; tile < tileCount; tile++) {
+			start[tile + 1] += start[tile];
+			fill[tile] = start[tile];
+		}
+
+		if (candidates.length < start[tileCount]) {
+			candidates = new SceneObject[start[tileCount]];
+		}
+
+		for (int i = 0; i < n; i++) {
+			final int r = i * 4;
+
+			for (int ty = ranges[r + 1]; ty <= ranges[r + 3]; ty++) {
+				for (int tx = ranges[r]; tx <= ranges[r + 2]; tx++) {
+					candidates[fill[ty * tilesX + tx]++] = bounded[i];
+				}
+			}
+		}
+
+		//don't keep objects alive that were removed from the scene
+		Arrays.fill(bounded, 0, n, null);
+	}
+
+	/**
+	 * @return index of the first candidate of the tile in getCandidates()
+	 */
+	public int getFirst(int tile) {
+		return start[tile];
+	}
+
+	/**
+	 * @return index after the last candidate of the tile
+	 */
+	public int getEnd(int tile) {
+		return start[tile + 1];
+	}
+
+	public SceneObject[] getCandidates() {
+		return candidates;
+	}
+}
@@ -9,5 +9,25 @@ public class TraceResult {
 	
 	public Action action;
 	public long color;
-	public V3 nextRay;
+	public final V3 nextRay = new V3();
+
+	/**
+	 * Footprint of the pixel around the ray, for the mip level of
+	 * textures. At the ray start it is rayWidth wide, and it grows by
+	 * raySpread per unit of distance. Reflections continue the cone as if
+	 * the mirror was flat.
+	 */
+	public double rayWidth;
+	public double raySpread;
+
+	//texels read by the hits, collected and reset by RenderMetrics after each frame
+	public long textureReads;
+
+	/**
+	 * Scratch vectors for the hit calculation. Each tracer thread reuses
+	 * one result, so hits don't allocate.
+	 */
+	public final V3 normal = new V3();
+	public final V3 lightVector = new V3();
+	public final V3 reflect = new V3();
 }
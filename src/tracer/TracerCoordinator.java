@@ -9,74 +9,561 @@
 package tracer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.LockSupport;
 
 /**
  * The actual ray tracer.
  * 
+ * Each frame is cut into square tiles. Workers take the next free tile
+ * from a shared counter until none are left, so threads that got cheap
+ * tiles simply take more of them.
+ * 
+ * startFrame() returns while the workers trace, so the caller can present
+ * the previous frame in the meantime. The workers see a snapshot of the
+ * view taken at the start of the frame. The scene must not be changed
+ * until awaitFrame() has returned.
+ * 
+ * Camera moves are posted to a queue and applied when the next frame
+ * starts. Posting a move also cancels the frame being traced: workers
+ * take no more tiles, and the frame is dropped instead of shown.
+ * 
+ * In incremental mode the last frame is kept, and tiles that DirtyRegions
+ * finds unchanged are copied from it instead of traced.
+ * 
+ * With the GBuffer on, the primary hits are recorded, and frames with the
+ * same view and geometry are shaded from them without intersecting the
+ * primary rays.
+ * 
+ * In checkerboard mode each frame traces every other pixel, alternating
+ * between frames. The others are taken from the last frame where nothing
+ * moved, and interpolated from their neighbours where something did.
+ * 
+ * With a target frame time, a ResolutionController lowers the resolution
+ * in pixel blocks while frames take too long.
+ * 
  * @author Hj. Malthaner
  */
 public class TracerCoordinator {
+	public static final int DEFAULT_TILE_SIZE = 32;
+
 	private final DisplayInterface displayPanel;
 
 	private Scene scene;
 	private View view;
+	private final View frameView = new View();
+	private final ConcurrentLinkedQueue<View.Move> moves = new ConcurrentLinkedQueue<View.Move>();
+	private final AtomicInteger generation = new AtomicInteger();
+	private volatile int frameGeneration;
 	
 	private final ArrayList<TracerThread> workers;
-	
-	private int displayBase;
+
+	private volatile int frame;
+	private volatile int requestedTileSize;
+	private int tileSize;
+	private volatile boolean packetTracing;
+	private volatile boolean incremental;
+	private boolean keepFrame;
+	private int[] lastFrame;
+	private final DirtyRegions dirtyRegions = new DirtyRegions();
+	private int tracedTiles;
+	private volatile boolean checkerboard;
+	private boolean checkerFrame;
+	private volatile int antialiasing;
+	private volatile boolean wavefront;
+	private volatile boolean tileBinning = true;
+	private boolean binnedFrame;
+	private final TileBins tileBins = new TileBins();
+	private int antialiasDepth;
+	//per tile bit mask of the checkerboard halves traced since it last changed
+	private byte[] tileHalves = new byte[0];
+	private volatile boolean gbufferEnabled;
+	private boolean useGBuffer;
+	private boolean reshade;
+	private final GBuffer gbuffer = new GBuffer();
+	private volatile ResolutionController resolution;
+	private ResolutionController frameResolution;
+	private int blockSize = 1;
+	private int frameMode;
+	private int width;
+	private int height;
+	private int tilesX;
+	private int tileCount;
+	private final AtomicInteger nextTile = new AtomicInteger();
 
 	private CountDownLatch workerLatch;
+	private final AtomicInteger busyWorkers = new AtomicInteger();
+	private FrameEvent frameEvent;
+	private long frameStart;
+	//written by the last worker to finish, before the latch opens
+	private volatile long frameEnd;
+	private boolean frameRunning;
+	private volatile boolean closed;
+
+	private final RenderMetrics metrics = new RenderMetrics();
 	
 	public TracerCoordinator(DisplayInterface panel, Scene scene, View view) {
+		this(panel, scene, view, Runtime.getRuntime().availableProcessors(), DEFAULT_TILE_SIZE);
+	}
+
+	public TracerCoordinator(DisplayInterface panel, Scene scene, View view, int workerCount, int tileSize) {
 		this.displayPanel = panel;
 		this.workers = new ArrayList<TracerThread>();
 		this.scene = scene;
 		this.view = view;
+		this.requestedTileSize = tileSize;
 		
-		createWorkers(16);
+		createWorkers(workerCount);
+		metrics.register();
 	}
 
 	public void createWorkers(int count) {		
-		final int height = displayPanel.getHeight();
-		final int width = displayPanel.getWidth();
-		final int halfHeight = height >> 1;
-		
-		this.displayBase = halfHeight;
-
-		final int workerStripe = height / count + 1;
-
 		for (int i = 0; i < count; i++) {
-			TracerThread worker = new TracerThread(this, scene, view);
+			TracerThread worker = new TracerThread(this, scene, frameView);
+			worker.setName("Tracer-" + workers.size());
 			workers.add(worker);
-
-			//0,0 is in the centre, so offset by halfHeight
-			final int yStart = -halfHeight + i * workerStripe;
-			final int yEnd = Math.min(halfHeight, yStart + workerStripe);
-
-			worker.setRenderingParameters(yStart, yEnd, width);
 			worker.start();
 		}
 	}
 
+	/**
+	 * Takes effect with the next frame.
+	 */
+	public void setTileSize(int tileSize) {
+		this.requestedTileSize = tileSize;
+	}
+
+	/**
+	 * Switches between tracing primary rays in 2x2 packets and one by one.
+	 * Both give the same image.
+	 */
+	public void setPacketTracing(boolean packetTracing) {
+		this.packetTracing = packetTracing;
+	}
+
+	public boolean isPacketTracing() {
+		return packetTracing;
+	}
+
+	/**
+	 * Only trace the tiles changed by moving objects, as long as the view
+	 * stays the same.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Cache the primary hits, so light and material changes only need the
+	 * shading redone.
+	 */
+	public void setGBuffer(boolean gbufferEnabled) {
+		this.gbufferEnabled = gbufferEnabled;
+	}
+
+	public boolean isGBuffer() {
+		return gbufferEnabled;
+	}
+
+	/**
+	 * Trace half of the pixels per frame and fill in the rest from the
+	 * last frame or the neighbours.
+	 */
+	public void setCheckerboard(boolean checkerboard) {
+		this.checkerboard = checkerboard;
+	}
+
+	public boolean isCheckerboard() {
+		return checkerboard;
+	}
+
+	/**
+	 * @return true if this frame only traces half of the pixels
+	 */
+	public boolean isCheckerboardFrame() {
+		return checkerFrame;
+	}
+
+	/**
+	 * Trace tiles with the wavefront engine, stage by stage over queues of
+	 * rays instead of one ray at a time.
+	 */
+	public void setWavefront(boolean wavefront) {
+		this.wavefront = wavefront;
+	}
+
+	public boolean isWavefront() {
+		return wavefront;
+	}
+
+	/**
+	 * Sort the objects into screen tiles each frame, so primary rays only
+	 * test the few objects in view of their tile. On by default.
+	 */
+	public void setTileBinning(boolean tileBinning) {
+		this.tileBinning = tileBinning;
+	}
+
+	public boolean isTileBinning() {
+		return tileBinning;
+	}
+
+	/**
+	 * @return the per tile candidates for primary rays, or null if they
+	 *         aren't binned this frame
+	 */
+	public TileBins getTileBins() {
+		return binnedFrame ? tileBins : null;
+	}
+
+	/**
+	 * Antialias by tracing the pixel corners and subdividing pixels on
+	 * edges.
+	 * 
+	 * @param depth how often an edge pixel may be split in four, 0 for one
+	 *        ray per pixel
+	 */
+	public void setAntialiasing(int depth) {
+		this.antialiasing = depth;
+	}
+
+	/**
+	 * @return how often edge pixels are subdivided this frame
+	 */
+	public int getAntialiasDepth() {
+		return antialiasDepth;
+	}
+
+	/**
+	 * Lowers the resolution as needed to trace frames in the given time.
+	 * 
+	 * @param millis the target frame time, 0 to always trace all pixels
+	 */
+	public void setTargetFrameMillis(double millis) {
+		resolution = millis > 0 ? new ResolutionController((long) (millis * 1E6)) : null;
+	}
+
+	/**
+	 * @return width and height of the pixel blocks sharing one primary ray
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Traces a frame and waits for it.
+	 */
 	public void nextFrame() {
-		synchronized(view) {
-			try {
-				workerLatch = new CountDownLatch(workers.size());
-				for(TracerThread worker : workers) {
-					LockSupport.unpark(worker);
-				}
-				workerLatch.await();
-			} catch (InterruptedException e) {}
+		startFrame();
+		awaitFrame();
+	}
+
+	/**
+	 * Starts tracing a frame of the current view and scene, returns at once.
+	 */
+	public void startFrame() {
+		if (frameRunning) {
+			throw new IllegalStateException("Last frame wasn't awaited");
+		}
+		if (closed) {
+			throw new IllegalStateException("Tracer is closed");
+		}
+
+		//moves posted after this cancel the new frame
+		frameGeneration = generation.get();
+
+		View.Move move;
+		while ((move = moves.poll()) != null) {
+			view.apply(move);
+		}
+		frameView.set(view);
+
+		scene.updateHierarchy();
+		scene.prepare(frameView.camera);
+
+		tileSize = requestedTileSize;
+		width = displayPanel.getWidth();
+		height = displayPanel.getHeight();
+		tilesX = (width + tileSize - 1) / tileSize;
+		tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+		nextTile.set(0);
+
+		binnedFrame = tileBinning;
+		if (binnedFrame) {
+			tileBins.update(scene, frameView, width, height, tileSize, tilesX, tileCount);
+		}
+
+		frameResolution = resolution;
+		blockSize = frameResolution == null ? 1 : frameResolution.getBlockSize();
+		checkerFrame = checkerboard && blockSize == 1;
+		//blocks and checkerboards are cheaper ways of tracing a frame
+		antialiasDepth = blockSize == 1 && !checkerFrame ? antialiasing : 0;
+
+		//tiles of the kept frame can only be reused by frames traced the same way
+		final int mode = blockSize | antialiasDepth << 8 | (checkerFrame ? 1 << 16 : 0);
+		if (mode != frameMode) {
+			frameMode = mode;
+			dirtyRegions.invalidate();
+		}
+
+		keepFrame = incremental || checkerFrame;
+		if (keepFrame) {
+			if (lastFrame == null || lastFrame.length != width * height) {
+				lastFrame = new int[width * height];
+				dirtyRegions.invalidate();
+			}
+			dirtyRegions.update(scene, frameView, width, height, tileSize, tilesX, tileCount);
+		} else {
+			dirtyRegions.invalidate();
+		}
+
+		if (tileHalves.length != tileCount) {
+			tileHalves = new byte[tileCount];
 		}
+		if (!checkerFrame) {
+			Arrays.fill(tileHalves, (byte) 0);
+		}
+
+		tracedTiles = 0;
+		for (int tile = 0; tile < tileCount; tile++) {
+			if (!canReuseTile(tile)) {
+				tracedTiles++;
+			}
+		}
+
+		//the cache holds the hit through each pixel, the other modes don't trace those
+		useGBuffer = gbufferEnabled && blockSize == 1 && !checkerFrame && antialiasDepth == 0;
+		if (useGBuffer) {
+			reshade = gbuffer.prepare(scene, frameView, width, height);
+		} else {
+			gbuffer.invalidate();
+			reshade = false;
+		}
+
+		frameEvent = new FrameEvent();
+		frameEvent.begin();
+		frameStart = System.nanoTime();
+
+		workerLatch = new CountDownLatch(workers.size());
+		busyWorkers.set(workers.size());
+		frameRunning = true;
+		frame++;
+		for(TracerThread worker : workers) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	/**
+	 * Waits until the frame started last is traced and hands it to the display.
+	 * 
+	 * @return false if the frame was cancelled and not shown
+	 */
+	public boolean awaitFrame() {
+		if (!frameRunning) {
+			return false;
+		}
+
+		try {
+			workerLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		frameRunning = false;
+		//the frame may be awaited long after it was done, e.g. by the window demo
+		final long latency = frameEnd - frameStart;
+		//a move after the last tile was taken still leaves a complete frame
+		final boolean cancelled = nextTile.get() < tileCount;
+		metrics.frameDone(frameEvent, frame, latency, workers, tileCount, tracedTiles, blockSize, cancelled);
+
+		if (frameResolution != null && !cancelled) {
+			frameResolution.frameDone(latency);
+		}
+
+		if (useGBuffer) {
+			gbuffer.frameDone(cancelled, tracedTiles == tileCount);
+		}
+
+		if (cancelled) {
+			//the kept frame is now part old, part new
+			dirtyRegions.invalidate();
+			return false;
+		}
+
+		displayPanel.frameComplete();
+		return true;
+	}
+
+	/**
+	 * Waits for the running frame, stops the workers and unregisters the
+	 * metrics, so nothing keeps the scene and the frame buffers reachable.
+	 */
+	public void close() {
+		awaitFrame();
+		closed = true;
+		for (TracerThread worker : workers) {
+			LockSupport.unpark(worker);
+		}
+
+		try {
+			for (TracerThread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		metrics.unregister();
+	}
+
+	/**
+	 * @return true once the workers were told to stop
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Queues a camera move for the next frame and cancels the current one,
+	 * safe to call from any thread.
+	 */
+	public void postMove(View.Move move) {
+		moves.add(move);
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * @return true if the frame being traced is outdated
+	 */
+	public boolean isCancelled() {
+		return generation.get() != frameGeneration;
+	}
+
+	/**
+	 * @return index of the next tile to trace, or -1 if the frame is done
+	 */
+	public int takeTile() {
+		if (isCancelled()) {
+			return -1;
+		}
+
+		final int tile = nextTile.getAndIncrement();
+		return tile < tileCount ? tile : -1;
 	}
 
-	public void workerDone(int yStart, int[] lineData) {
+	public void workerDone() {
+		if (busyWorkers.decrementAndGet() == 0) {
+			frameEnd = System.nanoTime();
+		}
 		workerLatch.countDown();
 	}
 	
-	public void lineReady(int yStart, int[] lineData) {
-		displayPanel.setLine(this.displayBase - yStart, lineData);
+	/**
+	 * @return the primary hit cache, or null if it's not used this frame
+	 */
+	public GBuffer getGBuffer() {
+		return useGBuffer ? gbuffer : null;
+	}
+
+	/**
+	 * @return true if this frame is shaded from the GBuffer
+	 */
+	public boolean isReshading() {
+		return reshade;
+	}
+
+	/**
+	 * @return true if the tile can be copied from the last frame
+	 */
+	public boolean canReuseTile(int tile) {
+		if (!incremental || !keepFrame || dirtyRegions.isDirty(tile)) {
+			return false;
+		}
+
+		//interpolated pixels are only gone once both halves were traced
+		return !checkerFrame || tileHalves[tile] == 3;
+	}
+
+	/**
+	 * @return true if the pixels of the tile may have changed since the
+	 *         last frame
+	 */
+	public boolean isTileMoving(int tile) {
+		return !keepFrame || dirtyRegions.isDirty(tile);
+	}
+
+	/**
+	 * Notes that one half of a tile's checkerboard was traced.
+	 */
+	public void halfTraced(int tile, int half, boolean moving) {
+		tileHalves[tile] = (byte) (moving ? 1 << half : tileHalves[tile] | 1 << half);
+	}
+
+	/**
+	 * @return the pixel of the last frame, only valid in incremental or
+	 *         checkerboard mode
+	 */
+	public int getLastPixel(int x, int y) {
+		return lastFrame[y * width + x];
+	}
+
+	public void tileReady(int x, int y, int w, int h, int[] tileData) {
+		if (keepFrame) {
+			for (int row = 0; row < h; row++) {
+				System.arraycopy(tileData, row * w, lastFrame, (y + row) * width + x, w);
+			}
+		}
+
+		displayPanel.setTile(x, y, w, h, tileData);
+	}
+
+	/**
+	 * Hands a tile of the last frame to the display again.
+	 */
+	public void reuseTile(int x, int y, int w, int h, int[] tileData) {
+		for (int row = 0; row < h; row++) {
+			System.arraycopy(lastFrame, (y + row) * width + x, tileData, row * w, w);
+		}
+
+		displayPanel.setTile(x, y, w, h, tileData);
+	}
+
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long[] getWorkerIds() {
+		final long[] ids = new long[workers.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = workers.get(i).getId();
+		}
+		return ids;
+	}
+
+	public int getFrame() {
+		return frame;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
 	}
 }
@@ -17,11 +17,53 @@ import tracer.objects.SceneObject;
  */
 public class TracerDataSet {
 	public final V3 currentRay = new V3();
-	public V3 nextRay;
 	public final V3 camera = new V3();
 	public final V3 hit = new V3();
+	public final V3 lineV = new V3();
 
 	public int[] linepix;
 
+	public final int[] nodeStack = new int[BoundingVolumeHierarchy.MAX_DEPTH];
+	public final double[] sphereDistances = new double[SphereKernel.MAX_RUN];
+
+	//primary ray packets, see BoundingVolumeHierarchy.intersectPacket()
+	public static final int PACKET_SIZE = 4;
+	public final V3[] packetRays = { new V3(), new V3(), new V3(), new V3() };
+	public final double[] packetInverse = new double[PACKET_SIZE * 3];
+	public final double[] packetDistances = new double[PACKET_SIZE];
+	public final SceneObject[] packetObjects = new SceneObject[PACKET_SIZE];
+	public final int[] packetPixels = new int[PACKET_SIZE];
+
+	//colours and primary objects at the pixel corners of a tile, for antialiasing
+	public int[] cornerColors;
+	public SceneObject[] cornerObjects;
+	public SceneObject sampleObject;
+
+	//wavefront queues: rays of the current bounce, their reflections and the shadow rays
+	public RayQueue waveRays;
+	public RayQueue waveReflected;
+	public RayQueue waveShadows;
+
+	//candidates of the current tile in TileBins, binFirst is -1 to use the hierarchy
+	public int binFirst = -1;
+	public int binEnd;
+
 	public SceneObject bestObject;
+
+	//the object that shadowed the last shadow ray of this thread
+	public SceneObject lastOccluder;
+
+	public final TraceResult result = new TraceResult();
+
+	//statistics, collected and reset by RenderMetrics after each frame
+	public long primaryRays;
+	public long reflectionRays;
+	public long shadowRays;
+	public long intersectionTests;
+
+	//time spent in the wavefront stages
+	public long generateNanos;
+	public long intersectNanos;
+	public long shadeNanos;
+	public long shadowNanos;
 }
@@ -22,15 +22,32 @@ import tracer.objects.SceneObject;
  */
 public class TracerThread extends Thread {
 	private static final long REFLECTED = -1L;
+
+	//antialiased pixels are subdivided if a colour channel varies more than this
+	private static final int EDGE_CONTRAST = 24;
+
 	private final TracerCoordinator coordinator;
-	private int yStart;
-	private int yEnd;
+	private int frame;
 	private int halfWidth;
+	private int halfHeight;
+	private int tileSize;
+	private boolean packets;
+	private GBuffer gbuffer;
+	private boolean reshade;
+	private int blockSize;
+	private boolean checkerboard;
+	private int antialiasDepth;
+	private boolean wavefront;
+	private TileBins bins;
+
+	private volatile long busyNanos;
+	private volatile int tiles;
 	
 	private Scene scene;
 	private View view;
 	
 	private final TracerDataSet tracerData;
+	private final Texture clouds;
 
 	public TracerThread(TracerCoordinator tracer, Scene scene, View view) {
 		this.coordinator = tracer;
@@ -38,46 +55,582 @@ public class TracerThread extends Thread {
 		this.view = view;
 		
 		tracerData = new TracerDataSet();
+		clouds = Textures.get("clouds.jpg");
 
 		setDaemon(true);
 	}
 
-	public void setRenderingParameters(int yStart, int yEnd, int width) {
-		this.yStart = yStart;
-		this.yEnd = yEnd;
-		this.halfWidth = width >> 1;
-		
-		tracerData.linepix = new int[width];
-	}
-
 	@Override
 	public synchronized void run() {
 		while (true) {
-			LockSupport.park(this);
+			//park() may return spuriously, only go on once a new frame was started
+			while (coordinator.getFrame() == frame) {
+				if (coordinator.isClosed()) {
+					return;
+				}
+				LockSupport.park(this);
+			}
+			frame = coordinator.getFrame();
+			final long t0 = System.nanoTime();
+			int tileCount = 0;
 
-			calculateAndSetLinetracerData();
-			coordinator.workerDone(yStart, tracerData.linepix);
+			setRenderingParameters(coordinator.getWidth(), coordinator.getHeight(), coordinator.getTileSize());
+			packets = coordinator.isPacketTracing();
+			gbuffer = coordinator.getGBuffer();
+			reshade = coordinator.isReshading();
+			blockSize = coordinator.getBlockSize();
+			checkerboard = coordinator.isCheckerboardFrame();
+			antialiasDepth = coordinator.getAntialiasDepth();
+			wavefront = coordinator.isWavefront();
+			bins = coordinator.getTileBins();
+
+			//angle between the rays of two neighbouring blocks, at the centre of the view
+			tracerData.result.raySpread = blockSize * view.horz.length() / view.cameraToLookAt.length();
+
+			int tile;
+			while ((tile = coordinator.takeTile()) >= 0) {
+				calculateAndSetTileData(tile);
+				tileCount++;
+			}
+
+			tiles = tileCount;
+			busyNanos = System.nanoTime() - t0;
+			coordinator.workerDone();
+		}
+	}
+
+	/**
+	 * @return time spent tracing in the last frame
+	 */
+	public long getBusyNanos() {
+		return busyNanos;
+	}
+
+	/**
+	 * @return number of tiles traced in the last frame
+	 */
+	public int getTiles() {
+		return tiles;
+	}
+
+	public TracerDataSet getTracerData() {
+		return tracerData;
+	}
+
+	private void setRenderingParameters(int width, int height, int tileSize) {
+		this.halfWidth = width >> 1;
+		this.halfHeight = height >> 1;
+		this.tileSize = tileSize;
+
+		if (tracerData.linepix == null || tracerData.linepix.length < tileSize * tileSize) {
+			tracerData.linepix = new int[tileSize * tileSize];
+			tracerData.cornerColors = new int[(tileSize + 1) * (tileSize + 1)];
+			tracerData.cornerObjects = new SceneObject[(tileSize + 1) * (tileSize + 1)];
+		}
+
+		if (tracerData.waveRays == null || tracerData.waveRays.capacity() < tileSize * tileSize) {
+			tracerData.waveRays = new RayQueue(tileSize * tileSize);
+			tracerData.waveReflected = new RayQueue(tileSize * tileSize);
+			tracerData.waveShadows = new RayQueue(tileSize * tileSize);
 		}
 	}
 	
-	private void calculateAndSetLinetracerData() {
-		V3 lineV = new V3();
+	private void calculateAndSetTileData(int tile) {
+		final int tilesX = coordinator.getTilesX();
+
+		final int xStart = (tile % tilesX) * tileSize;
+		final int yStart = (tile / tilesX) * tileSize;
+		final int w = Math.min(tileSize, coordinator.getWidth() - xStart);
+		final int h = Math.min(tileSize, coordinator.getHeight() - yStart);
+
+		if (coordinator.canReuseTile(tile)) {
+			coordinator.reuseTile(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		tracerData.binFirst = -1;
+		if (bins != null && bins.getEnd(tile) - bins.getFirst(tile) <= TileBins.MAX_CANDIDATES) {
+			tracerData.binFirst = bins.getFirst(tile);
+			tracerData.binEnd = bins.getEnd(tile);
+		}
+
+		if (blockSize > 1) {
+			calculateTileBlocks(xStart, yStart, w, h);
+			coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		if (checkerboard) {
+			calculateTileCheckerboard(tile, xStart, yStart, w, h);
+			coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		if (antialiasDepth > 0) {
+			calculateTileAntialiased(xStart, yStart, w, h);
+			coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		tracerData.primaryRays += w * h;
+
+		if (reshade) {
+			shadeTile(xStart, yStart, w, h);
+			coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		if (wavefront) {
+			calculateTileWavefront(xStart, yStart, w, h);
+			coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		if (packets) {
+			calculateTilePackets(xStart, yStart, w, h);
+			coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+			return;
+		}
+
+		V3 lineV = tracerData.lineV;
 		
-		for (int y = yEnd; y > yStart; y--) {
+		for (int row = 0; row < h; row++) {
+			//0,0 is in the centre of the screen and y points up
+			final int y = halfHeight - (yStart + row);
+
 			//a ray through the scan line - set once and then added to each time below
 			lineV.set(view.cameraToLookAt).add(view.vert, y);
-			for (int x = -halfWidth; x < halfWidth; x++) {
+			for (int col = 0; col < w; col++) {
+				final int x = xStart + col - halfWidth;
+
 				//the actual ray through the view
 				tracerData.currentRay.set(lineV).add(view.horz, x);
 
 				tracerData.camera.set(view.camera);
 
-				final int rgb = traceObjects(tracerData, 255, -1);
+				final int rgb;
+				if (gbuffer == null) {
+					rgb = tracePrimary(tracerData);
+				} else {
+					final double distance = findPrimaryIntersection(tracerData);
+					gbuffer.record(xStart + col, yStart + row, tracerData.bestObject, distance);
+					rgb = tracePrimaryHit(tracerData, distance);
+				}
+
+				tracerData.linepix[row * w + col] = rgb;
+			}
+		}
+
+		coordinator.tileReady(xStart, yStart, w, h, tracerData.linepix);
+	}
+
+	/**
+	 * Traces the primary rays of a tile in 2x2 packets. The rays of a packet
+	 * leave the camera in almost the same direction, so they share one walk
+	 * through the hierarchy. Shading, reflections and shadows are traced
+	 * ray by ray afterwards.
+	 */
+	private void calculateTilePackets(int xStart, int yStart, int w, int h) {
+		final TracerDataSet data = tracerData;
+		final V3 lineV = data.lineV;
+
+		for (int row = 0; row < h; row += 2) {
+			for (int col = 0; col < w; col += 2) {
+				int n = 0;
+
+				for (int dy = 0; dy < 2 && row + dy < h; dy++) {
+					final int y = halfHeight - (yStart + row + dy);
+					lineV.set(view.cameraToLookAt).add(view.vert, y);
+
+					for (int dx = 0; dx < 2 && col + dx < w; dx++) {
+						final int x = xStart + col + dx - halfWidth;
+
+						data.packetRays[n].set(lineV).add(view.horz, x);
+						data.packetPixels[n] = (row + dy) * w + col + dx;
+						n++;
+					}
+				}
+
+				data.camera.set(view.camera);
+				findPacketIntersections(data, n);
+
+				for (int i = 0; i < n; i++) {
+					if (gbuffer != null) {
+						final int pixel = data.packetPixels[i];
+						gbuffer.record(xStart + pixel % w, yStart + pixel / w, data.packetObjects[i], data.packetDistances[i]);
+					}
+
+					data.camera.set(view.camera);
+					data.currentRay.set(data.packetRays[i]);
+					data.bestObject = data.packetObjects[i];
+
+					data.linepix[data.packetPixels[i]] = tracePrimaryHit(data, data.packetDistances[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Traces a tile breadth first instead of ray by ray. All primary rays go
+	 * into a queue, then each stage runs over the whole queue: intersection,
+	 * then shading, which queues the reflected rays for the next round and
+	 * the shadow rays for the end. The shadow rays of all bounces are traced
+	 * together last. Each stage keeps running the same code over many rays,
+	 * and its time is measured separately.
+	 */
+	private void calculateTileWavefront(int xStart, int yStart, int w, int h) {
+		final TracerDataSet data = tracerData;
+		final V3 lineV = data.lineV;
+		final TraceResult result = data.result;
+		final RayQueue shadows = data.waveShadows;
+		RayQueue rays = data.waveRays;
+		RayQueue reflected = data.waveReflected;
+
+		long t0 = System.nanoTime();
+
+		rays.size = 0;
+		shadows.size = 0;
+		for (int row = 0; row < h; row++) {
+			final int y = halfHeight - (yStart + row);
+			lineV.set(view.cameraToLookAt).add(view.vert, y);
+
+			for (int col = 0; col < w; col++) {
+				final int x = xStart + col - halfWidth;
+
+				data.currentRay.set(lineV).add(view.horz, x);
+				final int ray = rays.add(view.camera, data.currentRay, row * w + col, 255);
+				rays.width[ray] = 0;
+			}
+		}
+		data.primaryRays += w * h;
+
+		long t1 = System.nanoTime();
+		data.generateNanos += t1 - t0;
+
+		boolean primary = true;
+		while (rays.size > 0) {
+			for (int i = 0; i < rays.size; i++) {
+				rays.get(i, data.camera, data.currentRay);
+				rays.distance[i] = primary ? findPrimaryIntersection(data) : findIntersection(data);
+				rays.object[i] = data.bestObject;
+
+				if (primary && gbuffer != null) {
+					final int pixel = rays.pixel[i];
+					gbuffer.record(xStart + pixel % w, yStart + pixel / w, data.bestObject, rays.distance[i]);
+				}
+			}
+
+			t0 = System.nanoTime();
+			data.intersectNanos += t0 - t1;
+
+			reflected.size = 0;
+			for (int i = 0; i < rays.size; i++) {
+				final SceneObject object = rays.object[i];
+				final int pixel = rays.pixel[i];
+				final int brightness = rays.brightness[i];
+
+				rays.get(i, data.camera, data.currentRay);
+
+				if (object == null) {
+					data.linepix[pixel] = RGB.shadeAndCompact(getBackgroundRGB(data), brightness);
+					continue;
+				}
+
+				result.rayWidth = rays.width[i];
+				object.hit(data.camera, data.currentRay, scene.light, rays.distance[i], result);
+
+				if (result.action == TraceResult.Action.REFLECTED) {
+					//ray is slightly dimmed on reflection
+					final int dimmed = (int) (brightness * 0.9);
+					data.reflectionRays++;
+
+					if (dimmed <= 16) {
+						data.linepix[pixel] = RGB.shadeAndCompact(-1, dimmed);
+					} else {
+						final int ray = reflected.add(data.camera, result.nextRay, pixel, dimmed);
+						reflected.width[ray] = rays.width[i] + result.raySpread * rays.distance[i] * data.currentRay.length();
+					}
+				} else {
+					final int shadow = shadows.add(data.camera, data.currentRay, pixel, brightness);
+					shadows.color[shadow] = result.color;
+				}
+			}
+
+			t1 = System.nanoTime();
+			data.shadeNanos += t1 - t0;
+
+			final RayQueue swap = rays;
+			rays = reflected;
+			reflected = swap;
+			primary = false;
+		}
+
+		for (int i = 0; i < shadows.size; i++) {
+			int brightness = shadows.brightness[i];
+
+			shadows.get(i, data.camera, data.currentRay);
+			data.currentRay.set(scene.light).sub(data.camera);
+			data.shadowRays++;
+
+			//the light is at distance 1, anything behind it casts no shadow
+			if (findOccluder(data, 1.0) != null) {
+				brightness = (int) (brightness * 0.3);
+			}
+
+			data.linepix[shadows.pixel[i]] = RGB.shadeAndCompact(shadows.color[i], brightness);
+		}
+
+		data.shadowNanos += System.nanoTime() - t1;
+	}
+
+	/**
+	 * Traces one ray for each blockSize x blockSize block of the tile and
+	 * fills the block with its colour.
+	 */
+	private void calculateTileBlocks(int xStart, int yStart, int w, int h) {
+		final TracerDataSet data = tracerData;
+		final V3 lineV = data.lineV;
+		final int b = blockSize;
+
+		for (int row = 0; row < h; row += b) {
+			final int y = halfHeight - (yStart + row);
+			lineV.set(view.cameraToLookAt).add(view.vert, y);
+
+			final int rows = Math.min(b, h - row);
+
+			for (int col = 0; col < w; col += b) {
+				final int x = xStart + col - halfWidth;
+
+				data.currentRay.set(lineV).add(view.horz, x);
+				data.camera.set(view.camera);
+				data.primaryRays++;
+
+				final int rgb = tracePrimary(data);
+
+				final int cols = Math.min(b, w - col);
+				for (int r = 0; r < rows; r++) {
+					final int start = (row + r) * w + col;
+					for (int c = 0; c < cols; c++) {
+						data.linepix[start + c] = rgb;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Traces the pixels of one checkerboard half, the half changes with each
+	 * frame. Pixels of the other half are copied from the last frame, where
+	 * they were traced, unless something moved in the tile. Then they are
+	 * averaged from their traced neighbours.
+	 */
+	private void calculateTileCheckerboard(int tile, int xStart, int yStart, int w, int h) {
+		final TracerDataSet data = tracerData;
+		final V3 lineV = data.lineV;
+		final int[] pix = data.linepix;
+		final int half = frame & 1;
+
+		for (int row = 0; row < h; row++) {
+			final int y = halfHeight - (yStart + row);
+			lineV.set(view.cameraToLookAt).add(view.vert, y);
+
+			for (int col = (xStart + yStart + row + half) & 1; col < w; col += 2) {
+				final int x = xStart + col - halfWidth;
+
+				data.currentRay.set(lineV).add(view.horz, x);
+				data.camera.set(view.camera);
+				data.primaryRays++;
+
+				pix[row * w + col] = tracePrimary(data);
+			}
+		}
+
+		final boolean moving = coordinator.isTileMoving(tile);
+
+		for (int row = 0; row < h; row++) {
+			for (int col = (xStart + yStart + row + half + 1) & 1; col < w; col += 2) {
+				if (!moving) {
+					pix[row * w + col] = coordinator.getLastPixel(xStart + col, yStart + row);
+					continue;
+				}
+
+				//the neighbours across the tile border aren't traced yet
+				long sum = 0;
+				int n = 0;
 
-				tracerData.linepix[halfWidth + x] = rgb;
+				if (col > 0) {
+					sum += RGB.spread(pix[row * w + col - 1]);
+					n++;
+				}
+				if (col < w - 1) {
+					sum += RGB.spread(pix[row * w + col + 1]);
+					n++;
+				}
+				if (row > 0) {
+					sum += RGB.spread(pix[(row - 1) * w + col]);
+					n++;
+				}
+				if (row < h - 1) {
+					sum += RGB.spread(pix[(row + 1) * w + col]);
+					n++;
+				}
+
+				pix[row * w + col] = n == 0 ? RGB.compact(0) : RGB.shadeAndCompact(sum, 256 / n);
 			}
-			coordinator.lineReady(y, tracerData.linepix);
 		}
+
+		coordinator.halfTraced(tile, half, moving);
+	}
+
+	/**
+	 * Traces a ray through each pixel corner of the tile. A pixel gets the
+	 * average of its corners, unless they hit different objects or differ
+	 * in colour. Then it's split in four and sampled again, up to
+	 * antialiasDepth times.
+	 */
+	private void calculateTileAntialiased(int xStart, int yStart, int w, int h) {
+		final TracerDataSet data = tracerData;
+		final int[] colors = data.cornerColors;
+		final SceneObject[] objects = data.cornerObjects;
+		final int cw = w + 1;
+
+		for (int row = 0; row <= h; row++) {
+			final double y = halfHeight - (yStart + row) + 0.5;
+
+			for (int col = 0; col <= w; col++) {
+				final double x = xStart + col - halfWidth - 0.5;
+
+				colors[row * cw + col] = traceSample(x, y);
+				objects[row * cw + col] = data.sampleObject;
+			}
+		}
+
+		for (int row = 0; row < h; row++) {
+			final double y = halfHeight - (yStart + row) + 0.5;
+
+			for (int col = 0; col < w; col++) {
+				final double x = xStart + col - halfWidth - 0.5;
+				final int i = row * cw + col;
+
+				final long rgb = samplePixel(x, y, 1.0,
+						colors[i], colors[i + 1], colors[i + cw], colors[i + cw + 1],
+						objects[i], objects[i + 1], objects[i + cw], objects[i + cw + 1], antialiasDepth);
+
+				data.linepix[row * w + col] = RGB.compact(rgb);
+			}
+		}
+	}
+
+	/**
+	 * Colour of a square given by its corner samples, top left at x, y.
+	 * 
+	 * @return the spread colour
+	 */
+	private long samplePixel(double x, double y, double size,
+			int c00, int c10, int c01, int c11,
+			SceneObject o00, SceneObject o10, SceneObject o01, SceneObject o11, int depth) {
+
+		if (depth == 0 || (o00 == o10 && o00 == o01 && o00 == o11 && contrast(c00, c10, c01, c11) <= EDGE_CONTRAST)) {
+			return RGB.shade(RGB.spread(c00) + RGB.spread(c10) + RGB.spread(c01) + RGB.spread(c11), 64);
+		}
+
+		final double half = size * 0.5;
+
+		final int top = traceSample(x + half, y);
+		final SceneObject oTop = tracerData.sampleObject;
+		final int left = traceSample(x, y - half);
+		final SceneObject oLeft = tracerData.sampleObject;
+		final int centre = traceSample(x + half, y - half);
+		final SceneObject oCentre = tracerData.sampleObject;
+		final int right = traceSample(x + size, y - half);
+		final SceneObject oRight = tracerData.sampleObject;
+		final int bottom = traceSample(x + half, y - size);
+		final SceneObject oBottom = tracerData.sampleObject;
+
+		final long sum = samplePixel(x, y, half, c00, top, left, centre, o00, oTop, oLeft, oCentre, depth - 1)
+				+ samplePixel(x + half, y, half, top, c10, centre, right, oTop, o10, oCentre, oRight, depth - 1)
+				+ samplePixel(x, y - half, half, left, centre, c01, bottom, oLeft, oCentre, o01, oBottom, depth - 1)
+				+ samplePixel(x + half, y - half, half, centre, right, bottom, c11, oCentre, oRight, oBottom, o11, depth - 1);
+
+		return RGB.shade(sum, 64);
+	}
+
+	/**
+	 * Traces a primary ray through a point of the screen, sets
+	 * tracerData.sampleObject to the object it hits first.
+	 */
+	private int traceSample(double x, double y) {
+		final TracerDataSet data = tracerData;
+
+		data.currentRay.set(view.cameraToLookAt).add(view.vert, y).add(view.horz, x);
+		data.camera.set(view.camera);
+		data.primaryRays++;
+
+		final double distance = findPrimaryIntersection(data);
+		data.sampleObject = data.bestObject;
+
+		return tracePrimaryHit(data, distance);
+	}
+
+	/**
+	 * @return the largest difference of the four colours in any channel
+	 */
+	private static int contrast(int a, int b, int c, int d) {
+		int max = 0;
+
+		for (int shift = 0; shift <= 16; shift += 8) {
+			final int ca = (a >> shift) & 0xFF;
+			final int cb = (b >> shift) & 0xFF;
+			final int cc = (c >> shift) & 0xFF;
+			final int cd = (d >> shift) & 0xFF;
+
+			final int range = Math.max(Math.max(ca, cb), Math.max(cc, cd)) - Math.min(Math.min(ca, cb), Math.min(cc, cd));
+			max = Math.max(max, range);
+		}
+
+		return max;
+	}
+
+	/**
+	 * Shades a tile from the primary hits in the GBuffer, only reflections
+	 * and shadows are traced.
+	 */
+	private void shadeTile(int xStart, int yStart, int w, int h) {
+		final TracerDataSet data = tracerData;
+		final V3 lineV = data.lineV;
+
+		for (int row = 0; row < h; row++) {
+			final int y = halfHeight - (yStart + row);
+			lineV.set(view.cameraToLookAt).add(view.vert, y);
+
+			for (int col = 0; col < w; col++) {
+				final int x = xStart + col - halfWidth;
+
+				data.currentRay.set(lineV).add(view.horz, x);
+				data.camera.set(view.camera);
+				data.bestObject = gbuffer.getObject(xStart + col, yStart + row);
+
+				data.linepix[row * w + col] = tracePrimaryHit(data, gbuffer.getDistance(xStart + col, yStart + row));
+			}
+		}
+	}
+
+	/**
+	 * Traces a ray from the camera, data.camera must be view.camera.
+	 */
+	private int tracePrimary(TracerDataSet data) {
+		final double distanceToNearestObject = findPrimaryIntersection(data);
+
+		return tracePrimaryHit(data, distanceToNearestObject);
+	}
+
+	/**
+	 * Shades the hit of a ray from the camera.
+	 */
+	private int tracePrimaryHit(TracerDataSet data, double distance) {
+		data.result.rayWidth = 0;
+
+		return traceHit(data, 255, -1, distance);
 	}
 
 	private int traceObjects(TracerDataSet tracerData, int brightness, long objectRgb) {
@@ -85,16 +638,26 @@ public class TracerThread extends Thread {
 		
 		final double distanceToNearestObject = findIntersection(tracerData);
 
+		return traceHit(tracerData, brightness, objectRgb, distanceToNearestObject);
+	}
+
+	/**
+	 * Shades the hit found for the ray in tracerData, following reflections.
+	 */
+	private int traceHit(TracerDataSet tracerData, int brightness, long objectRgb, double distanceToNearestObject) {
 		//the ray did not hit an object
 		if(tracerData.bestObject == null) {
 			return RGB.shadeAndCompact(getBackgroundRGB(tracerData), brightness);
 		}
 		
-		final TraceResult result = tracerData.bestObject.hit(tracerData.camera, tracerData.currentRay, scene.light, distanceToNearestObject);
+		final TraceResult result = tracerData.result;
+		tracerData.bestObject.hit(tracerData.camera, tracerData.currentRay, scene.light, distanceToNearestObject, result);
 
 		if (result.action == TraceResult.Action.REFLECTED) {
 			//ray is slightly dimmed on reflection
 			brightness = (int)(brightness * 0.9);
+			tracerData.reflectionRays++;
+			result.rayWidth += result.raySpread * distanceToNearestObject * tracerData.currentRay.length();
 			tracerData.currentRay.set(result.nextRay);
 			return traceObjects(tracerData, brightness, objectRgb);
 		} else {
@@ -112,7 +675,8 @@ public class TracerThread extends Thread {
 		double distanceToNearestObject = Double.MAX_VALUE;
 		data.bestObject = null;
 
-		ArrayList<SceneObject> objects = scene.getSceneObjects();
+		ArrayList<SceneObject> objects = scene.getUnboundedObjects();
+		data.intersectionTests += objects.size();
 		for (int i = 0; i < objects.size(); i++) {
 
 			final SceneObject object = objects.get(i);
@@ -124,29 +688,160 @@ public class TracerThread extends Thread {
 			}
 		}
 
+		return scene.getHierarchy().intersect(data, raylen2, distanceToNearestObject);
+	}
+
+	/**
+	 * Same as findIntersection() for a ray from the camera, using the terms
+	 * the objects cached for it in prepare(). The ray must pass through the
+	 * current tile, if it has binned candidates only those are tested.
+	 */
+	private double findPrimaryIntersection(TracerDataSet data) {
+		final double raylen2 = data.currentRay.length2();
+
+		double distanceToNearestObject = Double.MAX_VALUE;
+		data.bestObject = null;
+
+		ArrayList<SceneObject> objects = scene.getUnboundedObjects();
+		data.intersectionTests += objects.size();
+		for (int i = 0; i < objects.size(); i++) {
+
+			final SceneObject object = objects.get(i);
+			final double distanceToObject = object.distanceFromCamera(data.currentRay, raylen2);
+
+			if (distanceToObject >= 0 && distanceToObject < distanceToNearestObject) {
+				data.bestObject = object;
+				distanceToNearestObject = distanceToObject;
+			}
+		}
+
+		if (data.binFirst < 0) {
+			return scene.getHierarchy().intersectPrimary(data, raylen2, distanceToNearestObject);
+		}
+
+		final SceneObject[] candidates = bins.getCandidates();
+		data.intersectionTests += data.binEnd - data.binFirst;
+		for (int i = data.binFirst; i < data.binEnd; i++) {
+			final SceneObject object = candidates[i];
+			final double distanceToObject = object.distanceFromCamera(data.currentRay, raylen2);
+
+			if (distanceToObject >= 0 && distanceToObject < distanceToNearestObject) {
+				data.bestObject = object;
+				distanceToNearestObject = distanceToObject;
+			}
+		}
+
 		return distanceToNearestObject;
 	}
 
+	/**
+	 * Nearest hits for the first n rays in data.packetRays, all starting at
+	 * the camera.
+	 */
+	private void findPacketIntersections(TracerDataSet data, int n) {
+		ArrayList<SceneObject> objects = scene.getUnboundedObjects();
+		data.intersectionTests += n * objects.size();
+
+		for (int i = 0; i < n; i++) {
+			final V3 ray = data.packetRays[i];
+			final double raylen2 = ray.length2();
+
+			double distanceToNearestObject = Double.MAX_VALUE;
+			data.packetObjects[i] = null;
+
+			for (int j = 0; j < objects.size(); j++) {
+				final SceneObject object = objects.get(j);
+				final double distanceToObject = object.distanceFromCamera(ray, raylen2);
+
+				if (distanceToObject >= 0 && distanceToObject < distanceToNearestObject) {
+					data.packetObjects[i] = object;
+					distanceToNearestObject = distanceToObject;
+				}
+			}
+
+			data.packetDistances[i] = distanceToNearestObject;
+		}
+
+		if (data.binFirst < 0) {
+			scene.getHierarchy().intersectPacket(data, n);
+			return;
+		}
+
+		final SceneObject[] candidates = bins.getCandidates();
+		data.intersectionTests += n * (data.binEnd - data.binFirst);
+
+		for (int i = 0; i < n; i++) {
+			final V3 ray = data.packetRays[i];
+			final double raylen2 = ray.length2();
+
+			for (int j = data.binFirst; j < data.binEnd; j++) {
+				final SceneObject object = candidates[j];
+				final double distanceToObject = object.distanceFromCamera(ray, raylen2);
+
+				if (distanceToObject >= 0 && distanceToObject < data.packetDistances[i]) {
+					data.packetObjects[i] = object;
+					data.packetDistances[i] = distanceToObject;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks for any object between data.camera and the end of
+	 * data.currentRay, stopping at the first one found.
+	 * 
+	 * @param maxDistance only objects nearer than this are considered, in
+	 *        units of the ray length
+	 */
+	private SceneObject findOccluder(TracerDataSet data, double maxDistance) {
+		final double raylen2 = data.currentRay.length2();
+
+		//neighbouring pixels are mostly shadowed by the same object
+		final SceneObject last = data.lastOccluder;
+		data.intersectionTests++;
+		if (last != null && last.occludes(data.camera, data.currentRay, raylen2, maxDistance)) {
+			return last;
+		}
+
+		ArrayList<SceneObject> objects = scene.getUnboundedObjects();
+		for (int i = 0; i < objects.size(); i++) {
+			final SceneObject object = objects.get(i);
+
+			data.intersectionTests++;
+			if (object.occludes(data.camera, data.currentRay, raylen2, maxDistance)) {
+				data.lastOccluder = object;
+				return object;
+			}
+		}
+
+		final SceneObject occluder = scene.getHierarchy().findOccluder(data, raylen2, maxDistance);
+		if (occluder != null) {
+			data.lastOccluder = occluder;
+		}
+
+		return occluder;
+	}
+
 	private boolean isInShadow(TracerDataSet tracerData, int brightness, final long color) {
-		//ray from the light to the camera
+		//ray from the camera to the light
 		tracerData.currentRay.set(scene.light).sub(tracerData.camera);
+		tracerData.shadowRays++;
 
-		//see if it intersects anything
-		findIntersection(tracerData);
-		if (tracerData.bestObject != null) {
-			return true;
-		}
-		return false;
+		//the light is at distance 1, anything behind it casts no shadow
+		return findOccluder(tracerData, 1.0) != null;
 	}
 
 	private long getBackgroundRGB(TracerDataSet tracerData) {
 		//this is now the reflected ray
 		tracerData.currentRay.norm();
 
-		final int tx = (int) (Textures.clouds.getWidth() * (tracerData.currentRay.x + 1.0) * 0.5);
-		final int ty = (int) (Textures.clouds.getHeight() * (tracerData.currentRay.y + 1.0) * 0.5);
+		//the sky is mapped by direction, so only the angle of the cone counts
+		final int level = clouds.getLevel(clouds.getWidth() * 0.5 * tracerData.result.raySpread);
+		final int tx = (int) (clouds.getWidth(level) * (tracerData.currentRay.x + 1.0) * 0.5);
+		final int ty = (int) (clouds.getHeight(level) * (tracerData.currentRay.y + 1.0) * 0.5);
 
-		return RGB.spread(Textures.clouds.getRGB(tx, ty));
+		tracerData.result.textureReads++;
+		return RGB.spread(clouds.getRGB(tx, ty, level));
 	}
 	
 }
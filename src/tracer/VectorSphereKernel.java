@@ -0,0 +1,49 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Sphere kernel using the incubating Vector API, intersecting one lane
+ * of spheres per step. Uses no fused multiply-add, so every lane rounds
+ * exactly like the scalar code.
+ */
+public class VectorSphereKernel extends SphereKernel {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void intersect(PackedSpheres spheres, int first, int count, V3 camera, V3 ray, double[] distances) {
+		final double lengthOfRaySquared = ray.length2();
+
+		for (int i = 0; i < count; i += SPECIES.length()) {
+			final VectorMask<Double> inRange = SPECIES.indexInRange(i, count);
+			final int s = first + i;
+
+			final DoubleVector px = DoubleVector.broadcast(SPECIES, camera.x).sub(DoubleVector.fromArray(SPECIES, spheres.x, s, inRange));
+			final DoubleVector py = DoubleVector.broadcast(SPECIES, camera.y).sub(DoubleVector.fromArray(SPECIES, spheres.y, s, inRange));
+			final DoubleVector pz = DoubleVector.broadcast(SPECIES, camera.z).sub(DoubleVector.fromArray(SPECIES, spheres.z, s, inRange));
+			final DoubleVector radiusSquared = DoubleVector.fromArray(SPECIES, spheres.radiusSquared, s, inRange);
+
+			final DoubleVector projection = px.mul(ray.x).add(py.mul(ray.y)).add(pz.mul(ray.z));
+			final DoubleVector lengthOfCameraToObjectSquared = px.mul(px).add(py.mul(py)).add(pz.mul(pz));
+
+			final DoubleVector disk = projection.mul(projection).sub(lengthOfCameraToObjectSquared.sub(radiusSquared).mul(lengthOfRaySquared));
+			final VectorMask<Double> miss = disk.compare(VectorOperators.LT, 0.0);
+
+			final DoubleVector root = disk.sqrt();
+			final DoubleVector t1 = projection.neg().sub(root);
+			final DoubleVector t2 = projection.neg().add(root);
+
+			final DoubleVector t = t1.blend(t2, t1.compare(VectorOperators.LT, 0.0)).div(lengthOfRaySquared);
+			t.blend(Double.MAX_VALUE, miss).intoArray(distances, i, inRange);
+		}
+	}
+}
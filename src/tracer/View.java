@@ -2,6 +2,13 @@ package tracer;
 
 public class View {
 
+	/**
+	 * Camera changes, as posted from the user interface.
+	 */
+	public enum Move {
+		ZOOM_IN, ZOOM_OUT, ROTATE_LEFT, ROTATE_RIGHT, LOOK_UP, LOOK_DOWN, LOOK_LEFT, LOOK_RIGHT
+	}
+
 	private double zoom = 0.018;
 
 	public static final V3 VERTICAL_AXIS = new V3(0.0,0.0,1.0);
@@ -33,6 +40,37 @@ public class View {
 	public void animate() {
 		update();
 	}
+
+	/**
+	 * Copies another view, used to take a snapshot the tracer can work with
+	 * while the original keeps changing.
+	 */
+	public void set(View other) {
+		zoom = other.zoom;
+		camera.set(other.camera);
+		lookAt.set(other.lookAt);
+		cameraToLookAt.set(other.cameraToLookAt);
+		horz.set(other.horz);
+		vert.set(other.vert);
+	}
+	
+	/**
+	 * Applies a posted camera change.
+	 */
+	public void apply(Move move) {
+		switch(move) {
+			case ZOOM_IN: zoomIn(); break;
+			case ZOOM_OUT: zoomOut(); break;
+			case ROTATE_LEFT: rotateLeft(); break;
+			case ROTATE_RIGHT: rotateRight(); break;
+			case LOOK_UP: lookUp(); break;
+			case LOOK_DOWN: lookDown(); break;
+			case LOOK_LEFT: lookLeft(); break;
+			case LOOK_RIGHT: lookRight(); break;
+		}
+
+		update();
+	}
 	
 	public void zoomIn() {
 		zoom -= 0.001;
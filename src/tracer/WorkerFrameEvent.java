@@ -0,0 +1,42 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event with the share of a frame one worker spent
+ * tracing. Committed by the coordinator, so the workers stay allocation
+ * free.
+ */
+@Name("tracer.WorkerFrame")
+@Label("Worker Frame")
+@Category("Tracer")
+@Description("Busy and parked time of a worker during a frame")
+public class WorkerFrameEvent extends Event {
+	@Label("Frame")
+	public int frame;
+
+	@Label("Worker")
+	public String worker;
+
+	@Label("Busy")
+	@Timespan
+	public long busy;
+
+	@Label("Parked")
+	@Timespan
+	public long parked;
+
+	@Label("Tiles")
+	public int tiles;
+}
@@ -22,6 +22,11 @@ public abstract class AbstractSceneObject implements SceneObject {
 
 	protected Material material;
 
+	private MoveListener moveListener;
+
+	//the camera of the frame, see prepare()
+	protected final V3 preparedCamera = new V3();
+
 	protected AbstractSceneObject() {
 		this.material = new Material(0x777777, 0);
 	}
@@ -31,6 +36,40 @@ public abstract class AbstractSceneObject implements SceneObject {
 		this.material = material;
 	}
 
+	@Override
+	public void prepare(V3 camera) {
+		preparedCamera.set(camera);
+	}
+
+	@Override
+	public double distanceFromCamera(V3 ray, double raylen2) {
+		return distanceToIntersection(preparedCamera, ray, raylen2);
+	}
+
+	@Override
+	public Material getMaterial() {
+		return material;
+	}
+
+	@Override
+	public boolean isReflective() {
+		return material.reflection > 0;
+	}
+
+	@Override
+	public void setMoveListener(MoveListener listener) {
+		this.moveListener = listener;
+	}
+
+	/**
+	 * Subclasses must call this whenever the object has moved.
+	 */
+	protected void moved() {
+		if (moveListener != null) {
+			moveListener.objectMoved(this);
+		}
+	}
+
 	public void reflect(V3 ray, final V3 normal) {
 		final double x = normal.x;
 		final double y = normal.y;
@@ -55,9 +94,10 @@ public abstract class AbstractSceneObject implements SceneObject {
 		ray.z -= z;
 	}
 
-	public int phong(V3 light, V3 oNormal, V3 ray) {
-		final V3 normal = V3.make(oNormal);
-
+	/**
+	 * @param reflect scratch vector, overwritten
+	 */
+	public int phong(V3 light, V3 normal, V3 ray, V3 reflect) {
 		final double d = V3.dot(light, normal);
 
 		final int sum;
@@ -67,7 +107,7 @@ public abstract class AbstractSceneObject implements SceneObject {
 			double ambient = 255.0 * material.ambient;
 			sum = Math.min(255, (int) (ambient));
 		} else {
-			final V3 reflect = new V3(light);
+			reflect.set(light);
 			reflect(reflect, normal);
 
 			final double l1 = light.length2();
@@ -83,8 +123,6 @@ public abstract class AbstractSceneObject implements SceneObject {
 			sum = Math.min(255, (int) (ambient + diffuse + specular));
 		}
 
-		V3.put(normal);
-
 		return sum;
 	}
 
@@ -92,5 +130,11 @@ public abstract class AbstractSceneObject implements SceneObject {
 	abstract public double distanceToIntersection(V3 camera, V3 ray, double raylen2);
 
 	@Override
-	abstract public TraceResult hit(V3 camera, V3 ray, V3 light, double t);
+	public boolean occludes(V3 camera, V3 ray, double raylen2, double maxDistance) {
+		final double t = distanceToIntersection(camera, ray, raylen2);
+		return t >= 0 && t < maxDistance;
+	}
+
+	@Override
+	abstract public void hit(V3 camera, V3 ray, V3 light, double t, TraceResult result);
 }
@@ -0,0 +1,157 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.objects;
+
+import tracer.RGB;
+import tracer.SpriteAtlas;
+import tracer.TraceResult;
+import tracer.V3;
+
+/**
+ * An upright sprite from a SpriteAtlas, turned around the vertical axis
+ * to face the camera of the frame.
+ *
+ * Rays hitting a transparent texel pass through. The intersection only
+ * reads the coverage bit of the texel, the colour is sampled in hit().
+ */
+public class Billboard extends AbstractSceneObject {
+	//hits closer than this, in units of the ray length, are the sprite the ray starts on
+	private static final double MIN_DISTANCE = 1E-9;
+
+	private final SpriteAtlas atlas;
+	private final SpriteAtlas.Sprite sprite;
+	private final V3 pos;
+	private final double texelsPerUnit;
+
+	//horizontal unit vectors towards the camera and to the right of the sprite, see prepare()
+	private double normalX = 0;
+	private double normalY = -1;
+	private double rightX = 1;
+	private double rightY = 0;
+
+	//camera relative to the sprite, in sprite coordinates
+	private double cameraDistance;
+	private double cameraRight;
+	private double cameraUp;
+
+	/**
+	 * @param pos where the foot of the sprite stands
+	 * @param unitsPerTexel size of a texel in the scene
+	 */
+	public Billboard(SpriteAtlas atlas, SpriteAtlas.Sprite sprite, V3 pos, double unitsPerTexel) {
+		super();
+
+		this.atlas = atlas;
+		this.sprite = sprite;
+		this.pos = new V3(pos);
+		this.texelsPerUnit = 1 / unitsPerTexel;
+	}
+
+	@Override
+	public void prepare(V3 camera) {
+		super.prepare(camera);
+
+		final double x = camera.x - pos.x;
+		final double y = camera.y - pos.y;
+		final double length = Math.sqrt(x * x + y * y);
+
+		//seen from straight above the sprite keeps its last direction
+		if (length > 0) {
+			normalX = x / length;
+			normalY = y / length;
+			rightX = -normalY;
+			rightY = normalX;
+		}
+
+		cameraDistance = -length;
+		cameraRight = x * rightX + y * rightY;
+		cameraUp = camera.z - pos.z;
+	}
+
+	@Override
+	public double distanceToIntersection(V3 camera, V3 ray, double raylen2) {
+		final double x = camera.x - pos.x;
+		final double y = camera.y - pos.y;
+
+		return intersect(-(x * normalX + y * normalY), x * rightX + y * rightY, camera.z - pos.z, ray);
+	}
+
+	@Override
+	public double distanceFromCamera(V3 ray, double raylen2) {
+		return intersect(cameraDistance, cameraRight, cameraUp, ray);
+	}
+
+	/**
+	 * @param distance from the ray start to the sprite plane, along the normal
+	 * @param right position of the ray start along the sprite
+	 * @param up height of the ray start over the foot
+	 */
+	private double intersect(double distance, double right, double up, V3 ray) {
+		final double d = ray.x * normalX + ray.y * normalY;
+		if (d == 0) {
+			return Double.MAX_VALUE;
+		}
+
+		final double t = distance / d;
+		if (t < MIN_DISTANCE) {
+			return Double.MAX_VALUE;
+		}
+
+		final double u = right + t * (ray.x * rightX + ray.y * rightY);
+		final double v = up + t * ray.z;
+
+		final int tx = (int) Math.floor(sprite.footX + u * texelsPerUnit);
+		final int ty = (int) Math.floor(sprite.footY - v * texelsPerUnit);
+
+		if (tx < 0 || ty < 0 || tx >= sprite.width || ty >= sprite.height) {
+			return Double.MAX_VALUE;
+		}
+
+		return atlas.covers(sprite.x + tx, sprite.y + ty) ? t : Double.MAX_VALUE;
+	}
+
+	@Override
+	public void hit(V3 camera, V3 ray, V3 light, double t, TraceResult result) {
+		camera.add(ray, t * ALMOST_ONE);
+
+		final double x = camera.x - pos.x;
+		final double y = camera.y - pos.y;
+		final double u = x * rightX + y * rightY;
+		final double v = camera.z - pos.z;
+
+		//the hit is on an opaque texel, clamp against rounding at its edges
+		final int tx = Math.max(0, Math.min(sprite.width - 1, (int) Math.floor(sprite.footX + u * texelsPerUnit)));
+		final int ty = Math.max(0, Math.min(sprite.height - 1, (int) Math.floor(sprite.footY - v * texelsPerUnit)));
+
+		//sprites are drawn with their light, only shadows darken them
+		result.color = RGB.spread(atlas.getRGB(sprite.x + tx, sprite.y + ty));
+		result.action = TraceResult.Action.ABSORBED;
+	}
+
+	@Override
+	public void translate(V3 move) {
+		pos.add(move);
+		moved();
+	}
+
+	@Override
+	public V3 getPos() {
+		return pos;
+	}
+
+	@Override
+	public boolean getBounds(V3 min, V3 max) {
+		//the sprite turns around its foot, the bounds hold every direction
+		final double radius = Math.max(sprite.footX + 1, sprite.width - sprite.footX) / texelsPerUnit;
+		final double below = (sprite.height - sprite.footY) / texelsPerUnit;
+		final double above = (sprite.footY + 1) / texelsPerUnit;
+
+		min.set(pos.x - radius, pos.y - radius, pos.z - below);
+		max.set(pos.x + radius, pos.y + radius, pos.z + above);
+		return true;
+	}
+}
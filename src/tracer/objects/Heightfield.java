@@ -0,0 +1,562 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.objects;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Random;
+
+import tracer.RGB;
+import tracer.Texture;
+import tracer.TraceResult;
+import tracer.V3;
+
+/**
+ * Terrain from a grid of elevation samples. Each grid cell is split into
+ * two triangles along its diagonal.
+ *
+ * Rays are intersected by walking a min/max pyramid of the grid: level 0
+ * holds the lowest and highest sample of each cell, every level above
+ * those of 2x2 nodes below. A node the ray passes above is skipped as a
+ * whole, so a ray only visits the cells close to where it meets the
+ * ground. The traversal is stackless, it steps along the ray at the
+ * current level, descends where the ray comes below the highest sample
+ * and goes up again when a step leaves the parent node.
+ */
+public class Heightfield extends AbstractSceneObject {
+	//hits closer than this, in units of the ray length, are the surface the ray starts on
+	private static final double MIN_DISTANCE = 1E-9;
+
+	//height tolerance for deciding whether a ray runs above the surface
+	private static final double SURFACE_EPSILON = 1E-7;
+
+	private final float[] heights;
+	private final int samplesX;
+	private final int samplesY;
+	private final int cellsX;
+	private final int cellsY;
+
+	//corner of the grid, heights are relative to its z
+	private final V3 origin;
+	private final double cellSize;
+
+	//min/max pyramid, level 0 are the cells, the top level is a single node
+	private final float[][] minHeights;
+	private final float[][] maxHeights;
+	private final int[] levelWidth;
+	private final int[] levelHeight;
+	private final int top;
+
+	private Texture texture;
+	private double textureSize = 1;
+
+	/**
+	 * @param heights samplesX * samplesY elevations, row by row
+	 * @param origin position of the first sample
+	 * @param cellSize distance between samples
+	 */
+	public Heightfield(float[] heights, int samplesX, int samplesY, V3 origin, double cellSize) {
+		super();
+
+		if (samplesX < 2 || samplesY < 2 || heights.length != samplesX * samplesY) {
+			throw new IllegalArgumentException("Need at least 2x2 samples, got " + samplesX + "x" + samplesY + " for " + heights.length + " heights");
+		}
+
+		this.heights = heights;
+		this.samplesX = samplesX;
+		this.samplesY = samplesY;
+		this.cellsX = samplesX - 1;
+		this.cellsY = samplesY - 1;
+		this.origin = new V3(origin);
+		this.cellSize = cellSize;
+
+		int levels = 1;
+		while ((cellsX - 1 >> levels - 1) > 0 || (cellsY - 1 >> levels - 1) > 0) {
+			levels++;
+		}
+
+		top = levels - 1;
+		minHeights = new float[levels][];
+		maxHeights = new float[levels][];
+		levelWidth = new int[levels];
+		levelHeight = new int[levels];
+
+		buildPyramid();
+	}
+
+	private void buildPyramid() {
+		levelWidth[0] = cellsX;
+		levelHeight[0] = cellsY;
+		minHeights[0] = new float[cellsX * cellsY];
+		maxHeights[0] = new float[cellsX * cellsY];
+
+		for (int y = 0; y < cellsY; y++) {
+			for (int x = 0; x < cellsX; x++) {
+				final int s = y * samplesX + x;
+				final float h00 = heights[s];
+				final float h10 = heights[s + 1];
+				final float h01 = heights[s + samplesX];
+				final float h11 = heights[s + samplesX + 1];
+
+				minHeights[0][y * cellsX + x] = Math.min(Math.min(h00, h10), Math.min(h01, h11));
+				maxHeights[0][y * cellsX + x] = Math.max(Math.max(h00, h10), Math.max(h01, h11));
+			}
+		}
+
+		for (int level = 1; level <= top; level++) {
+			final int below = levelWidth[level - 1];
+			final int belowHeight = levelHeight[level - 1];
+			final int w = (below + 1) >> 1;
+			final int h = (belowHeight + 1) >> 1;
+
+			final float[] mins = new float[w * h];
+			final float[] maxs = new float[w * h];
+
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					float min = Float.MAX_VALUE;
+					float max = -Float.MAX_VALUE;
+
+					//nodes at the right and bottom edge may have only one child per axis
+					for (int cy = y * 2; cy < Math.min(y * 2 + 2, belowHeight); cy++) {
+						for (int cx = x * 2; cx < Math.min(x * 2 + 2, below); cx++) {
+							min = Math.min(min, minHeights[level - 1][cy * below + cx]);
+							max = Math.max(max, maxHeights[level - 1][cy * below + cx]);
+						}
+					}
+
+					mins[y * w + x] = min;
+					maxs[y * w + x] = max;
+				}
+			}
+
+			levelWidth[level] = w;
+			levelHeight[level] = h;
+			minHeights[level] = mins;
+			maxHeights[level] = maxs;
+		}
+	}
+
+	/**
+	 * Tiles the texture over the terrain, once every size units.
+	 */
+	public void setTexture(Texture texture, double size) {
+		this.texture = texture;
+		this.textureSize = size;
+	}
+
+	@Override
+	public double distanceToIntersection(V3 camera, V3 ray, double raylen2) {
+		return intersect(camera, ray, Double.MAX_VALUE, false);
+	}
+
+	@Override
+	public boolean occludes(V3 camera, V3 ray, double raylen2, double maxDistance) {
+		return intersect(camera, ray, maxDistance, true) < maxDistance;
+	}
+
+	/**
+	 * Walks the pyramid along the ray.
+	 *
+	 * With anyHit the walk may stop at a node the ray dips below the lowest
+	 * sample of: coming from above the surface, it must cross the surface
+	 * before the first point of the node below that sample. The returned
+	 * distance is then that point, an upper bound of the hit.
+	 *
+	 * @return distance to the first hit in units of the ray length, or
+	 *         Double.MAX_VALUE
+	 */
+	private double intersect(V3 camera, V3 ray, double maxDistance, boolean anyHit) {
+		//grid space, one unit per cell and heights relative to the origin
+		final double gx = (camera.x - origin.x) / cellSize;
+		final double gy = (camera.y - origin.y) / cellSize;
+		final double oz = camera.z - origin.z;
+		final double dx = ray.x / cellSize;
+		final double dy = ray.y / cellSize;
+		final double dz = ray.z;
+
+		//clip the ray to the bounds of the whole grid
+		double tEnter = 0;
+		double tLeave = maxDistance;
+
+		if (dx != 0) {
+			final double t0 = -gx / dx;
+			final double t1 = (cellsX - gx) / dx;
+			tEnter = Math.max(tEnter, Math.min(t0, t1));
+			tLeave = Math.min(tLeave, Math.max(t0, t1));
+		} else if (gx < 0 || gx > cellsX) {
+			return Double.MAX_VALUE;
+		}
+
+		if (dy != 0) {
+			final double t0 = -gy / dy;
+			final double t1 = (cellsY - gy) / dy;
+			tEnter = Math.max(tEnter, Math.min(t0, t1));
+			tLeave = Math.min(tLeave, Math.max(t0, t1));
+		} else if (gy < 0 || gy > cellsY) {
+			return Double.MAX_VALUE;
+		}
+
+		final float lowest = minHeights[top][0];
+		final float highest = maxHeights[top][0];
+
+		if (dz != 0) {
+			final double t0 = (lowest - oz) / dz;
+			final double t1 = (highest - oz) / dz;
+			tEnter = Math.max(tEnter, Math.min(t0, t1));
+			tLeave = Math.min(tLeave, Math.max(t0, t1));
+		} else if (oz < lowest || oz > highest) {
+			return Double.MAX_VALUE;
+		}
+
+		if (tEnter > tLeave) {
+			return Double.MAX_VALUE;
+		}
+
+		//a dip below a node only proves a hit if the ray starts above the surface
+		final boolean above = anyHit && oz + dz * tEnter > heightAt(gx + dx * tEnter, gy + dy * tEnter) + SURFACE_EPSILON;
+
+		final int stepX = dx > 0 ? 1 : -1;
+		final int stepY = dy > 0 ? 1 : -1;
+		final double invX = 1 / dx;
+		final double invY = 1 / dy;
+
+		double t = tEnter;
+		int level = top;
+		int nx = 0;
+		int ny = 0;
+
+		while (true) {
+			final int size = 1 << level;
+			final int node = ny * levelWidth[level] + nx;
+
+			//where the ray leaves the node, the last nodes are cut off at the grid edge
+			double tx = Double.MAX_VALUE;
+			if (dx != 0) {
+				final int edge = dx > 0 ? Math.min((nx + 1) * size, cellsX) : nx * size;
+				tx = (edge - gx) * invX;
+			}
+
+			double ty = Double.MAX_VALUE;
+			if (dy != 0) {
+				final int edge = dy > 0 ? Math.min((ny + 1) * size, cellsY) : ny * size;
+				ty = (edge - gy) * invY;
+			}
+
+			final double tExit = Math.max(t, Math.min(Math.min(tx, ty), tLeave));
+			final double zEnter = oz + dz * t;
+			final double zExit = oz + dz * tExit;
+
+			if (Math.min(zEnter, zExit) <= maxHeights[level][node]) {
+				if (above && Math.min(zEnter, zExit) < minHeights[level][node] - SURFACE_EPSILON) {
+					//the ray crosses the surface before it is below the lowest sample. A descending ray
+					//may enter the node below it already, e.g. at a cliff, then that happens at t
+					final double tBelow = dz < 0 ? Math.max(t, (minHeights[level][node] - oz) / dz) : t;
+					if (tBelow < maxDistance) {
+						return tBelow;
+					}
+				}
+
+				if (level > 0) {
+					//descend into the child the ray is in. Compare crossing times like the steps do,
+					//rounding the position could pick the child that was just left
+					level--;
+					final int middleX = (nx * 2 + 1) * (size >> 1);
+					final int middleY = (ny * 2 + 1) * (size >> 1);
+					nx = Math.min(nx * 2 + (secondHalf(gx, invX, middleX, t) ? 1 : 0), levelWidth[level] - 1);
+					ny = Math.min(ny * 2 + (secondHalf(gy, invY, middleY, t) ? 1 : 0), levelHeight[level] - 1);
+					continue;
+				}
+
+				final double hit = intersectCell(nx, ny, gx, gy, oz, dx, dy, dz, t, tExit);
+				if (hit < maxDistance) {
+					return hit;
+				}
+			}
+
+			//step to the next node
+			if (tExit >= tLeave) {
+				return Double.MAX_VALUE;
+			}
+
+			int lastX = nx;
+			int lastY = ny;
+
+			t = tExit;
+			if (tx <= ty) {
+				nx += stepX;
+			}
+			if (ty <= tx) {
+				ny += stepY;
+			}
+
+			if (nx < 0 || ny < 0 || nx >= levelWidth[level] || ny >= levelHeight[level]) {
+				return Double.MAX_VALUE;
+			}
+
+			//go up as far as the step left the parents, their whole area may be skipped
+			while (level < top && ((nx ^ lastX) | (ny ^ lastY)) > 1) {
+				level++;
+				nx >>= 1;
+				ny >>= 1;
+				lastX >>= 1;
+				lastY >>= 1;
+			}
+		}
+	}
+
+	/**
+	 * @param inv inverse of the ray direction on the axis
+	 * @return true if the ray is past middle on one axis at time t
+	 */
+	private static boolean secondHalf(double g, double inv, int middle, double t) {
+		if (inv > 0 && inv != Double.POSITIVE_INFINITY) {
+			return (middle - g) * inv <= t;
+		}
+		if (inv < 0 && inv != Double.NEGATIVE_INFINITY) {
+			return (middle - g) * inv > t;
+		}
+		return g >= middle;
+	}
+
+	/**
+	 * Intersects both triangles of a cell.
+	 *
+	 * @return the nearer hit between tEnter and tExit, or Double.MAX_VALUE
+	 */
+	private double intersectCell(int x, int y, double gx, double gy, double oz, double dx, double dy, double dz, double tEnter, double tExit) {
+		final int s = y * samplesX + x;
+		final double h00 = heights[s];
+		final double h10 = heights[s + 1];
+		final double h01 = heights[s + samplesX];
+		final double h11 = heights[s + samplesX + 1];
+
+		//ray start relative to the cell
+		final double u = gx - x;
+		final double v = gy - y;
+
+		final double tolerance = 1E-9 * (tExit - tEnter + 1);
+		double best = Double.MAX_VALUE;
+
+		//triangle u >= v: z = h00 + (h10 - h00) * u + (h11 - h10) * v
+		double b = h10 - h00;
+		double c = h11 - h10;
+		double denominator = dz - b * dx - c * dy;
+		if (denominator != 0) {
+			final double t = (h00 + b * u + c * v - oz) / denominator;
+			if (t > MIN_DISTANCE && t >= tEnter - tolerance && t <= tExit + tolerance && u + dx * t >= v + dy * t) {
+				best = t;
+			}
+		}
+
+		//triangle v > u: z = h00 + (h11 - h01) * u + (h01 - h00) * v
+		b = h11 - h01;
+		c = h01 - h00;
+		denominator = dz - b * dx - c * dy;
+		if (denominator != 0) {
+			final double t = (h00 + b * u + c * v - oz) / denominator;
+			if (t > MIN_DISTANCE && t < best && t >= tEnter - tolerance && t <= tExit + tolerance && v + dy * t >= u + dx * t) {
+				best = t;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * @return the height of the surface at a point in grid space, clamped
+	 *         to the grid
+	 */
+	private double heightAt(double gx, double gy) {
+		final int x = clamp((int) Math.floor(gx), 0, cellsX - 1);
+		final int y = clamp((int) Math.floor(gy), 0, cellsY - 1);
+		final double u = Math.max(0, Math.min(1, gx - x));
+		final double v = Math.max(0, Math.min(1, gy - y));
+
+		final int s = y * samplesX + x;
+		final double h00 = heights[s];
+		final double h10 = heights[s + 1];
+		final double h01 = heights[s + samplesX];
+		final double h11 = heights[s + samplesX + 1];
+
+		if (u >= v) {
+			return h00 + (h10 - h00) * u + (h11 - h10) * v;
+		}
+		return h00 + (h11 - h01) * u + (h01 - h00) * v;
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return value < min ? min : (value > max ? max : value);
+	}
+
+	@Override
+	public void hit(V3 camera, V3 ray, V3 light, double t, TraceResult result) {
+		camera.add(ray, t * ALMOST_ONE);
+
+		final double gx = (camera.x - origin.x) / cellSize;
+		final double gy = (camera.y - origin.y) / cellSize;
+		final int x = clamp((int) Math.floor(gx), 0, cellsX - 1);
+		final int y = clamp((int) Math.floor(gy), 0, cellsY - 1);
+
+		final int s = y * samplesX + x;
+		final double h00 = heights[s];
+		final double h10 = heights[s + 1];
+		final double h01 = heights[s + samplesX];
+		final double h11 = heights[s + samplesX + 1];
+
+		//slopes of the triangle the point lies in
+		final double b;
+		final double c;
+		if (gx - x >= gy - y) {
+			b = h10 - h00;
+			c = h11 - h10;
+		} else {
+			b = h11 - h01;
+			c = h01 - h00;
+		}
+
+		final V3 normal = result.normal.set(-b / cellSize, -c / cellSize, 1);
+
+		if (material.reflection > 0) {
+			reflect(result.nextRay.set(ray), normal);
+			result.action = TraceResult.Action.REFLECTED;
+			return;
+		}
+
+		long color = material.color;
+		if (texture != null) {
+			//size of the pixel on the slope, in texels
+			final double length = ray.length();
+			final double footprint = (result.rayWidth + result.raySpread * t * length) * length * normal.length() / Math.abs(V3.dot(ray, normal));
+			final int level = texture.getLevel(texture.getWidth() * footprint / textureSize);
+
+			final double s1 = camera.x / textureSize;
+			final double t1 = camera.y / textureSize;
+			color = RGB.spread(texture.getRGB(s1 - Math.floor(s1), t1 - Math.floor(t1), level));
+			result.textureReads++;
+		}
+
+		final V3 lv = result.lightVector.set(light).sub(camera);
+		result.color = RGB.shade(color, phong(lv, normal, ray, result.reflect));
+		result.action = TraceResult.Action.ABSORBED;
+	}
+
+	@Override
+	public void translate(V3 move) {
+		origin.add(move);
+		moved();
+	}
+
+	@Override
+	public V3 getPos() {
+		return origin;
+	}
+
+	@Override
+	public boolean getBounds(V3 min, V3 max) {
+		min.set(origin.x, origin.y, origin.z + minHeights[top][0]);
+		max.set(origin.x + cellsX * cellSize, origin.y + cellsY * cellSize, origin.z + maxHeights[top][0]);
+		return true;
+	}
+
+	/**
+	 * Fractal terrain by midpoint displacement.
+	 *
+	 * @param size samples per side, rounded up to a power of two plus one
+	 * @return size * size heights between 0 and height
+	 */
+	public static float[] generate(int size, double height, long seed) {
+		int n = 1;
+		while (n + 1 < size) {
+			n <<= 1;
+		}
+
+		final int samples = n + 1;
+		final float[] heights = new float[samples * samples];
+		final Random random = new Random(seed);
+
+		double amplitude = 0.5;
+		for (int step = n; step > 1; step >>= 1) {
+			final int half = step >> 1;
+
+			//diamond step, the centre of each square
+			for (int y = half; y < samples; y += step) {
+				for (int x = half; x < samples; x += step) {
+					final double average = (heights[(y - half) * samples + x - half] + heights[(y - half) * samples + x + half]
+							+ heights[(y + half) * samples + x - half] + heights[(y + half) * samples + x + half]) * 0.25;
+					heights[y * samples + x] = (float) (average + (random.nextDouble() - 0.5) * amplitude);
+				}
+			}
+
+			//square step, the edge midpoints
+			for (int y = 0; y < samples; y += half) {
+				for (int x = (y / half & 1) == 0 ? half : 0; x < samples; x += step) {
+					double sum = 0;
+					int count = 0;
+					if (x >= half) {
+						sum += heights[y * samples + x - half];
+						count++;
+					}
+					if (x + half < samples) {
+						sum += heights[y * samples + x + half];
+						count++;
+					}
+					if (y >= half) {
+						sum += heights[(y - half) * samples + x];
+						count++;
+					}
+					if (y + half < samples) {
+						sum += heights[(y + half) * samples + x];
+						count++;
+					}
+					heights[y * samples + x] = (float) (sum / count + (random.nextDouble() - 0.5) * amplitude);
+				}
+			}
+
+			amplitude *= 0.5;
+		}
+
+		normalize(heights, height);
+		return heights;
+	}
+
+	/**
+	 * Elevations from the first band of an image, e.g. a 16 bit grey scale
+	 * height map.
+	 *
+	 * @return width * height heights between 0 and height
+	 */
+	public static float[] fromImage(BufferedImage image, double height) {
+		final Raster raster = image.getRaster();
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final float[] heights = new float[w * h];
+
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				heights[y * w + x] = raster.getSampleFloat(x, y, 0);
+			}
+		}
+
+		normalize(heights, height);
+		return heights;
+	}
+
+	private static void normalize(float[] heights, double height) {
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (float h : heights) {
+			min = Math.min(min, h);
+			max = Math.max(max, h);
+		}
+
+		final double scale = max > min ? height / (max - min) : 0;
+		for (int i = 0; i < heights.length; i++) {
+			heights[i] = (float) ((heights[i] - min) * scale);
+		}
+	}
+}
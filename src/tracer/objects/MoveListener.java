@@ -0,0 +1,15 @@
+/*
+ * This file is part of the SimpleRay project
+ * 
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+
+package tracer.objects;
+
+/**
+ * Gets told when a scene object has been moved.
+ */
+public interface MoveListener {
+	public void objectMoved(SceneObject object);
+}
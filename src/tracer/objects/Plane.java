@@ -9,6 +9,7 @@
 package tracer.objects;
 
 import tracer.RGB;
+import tracer.Texture;
 import tracer.Textures;
 import tracer.TraceResult;
 import tracer.V3;
@@ -26,6 +27,10 @@ public class Plane extends AbstractSceneObject {
 
 	private final long[] checker;
 	private final long outside;
+	private final Texture sand;
+
+	//distance of the camera to the plane along the normal, see prepare()
+	private double cameraDistance;
 
 	public Plane(V3 pos, V3 normal) {
 		super();
@@ -39,6 +44,7 @@ public class Plane extends AbstractSceneObject {
 		checker[1] = RGB.spread(128, 80, 0);
 
 		outside = RGB.spread(200, 200, 200);
+		sand = Textures.get("sand.jpg");
 	}
 
 	public void setMin(V3 min) {
@@ -65,8 +71,30 @@ public class Plane extends AbstractSceneObject {
 	}
 
 	@Override
-	public TraceResult hit(V3 p, V3 ray, V3 light, double t) {
-		TraceResult result = new TraceResult();
+	public void prepare(V3 camera) {
+		super.prepare(camera);
+
+		final double x = pos.x - camera.x;
+		final double y = pos.y - camera.y;
+		final double z = pos.z - camera.z;
+
+		cameraDistance = V3.dot(x, y, z, normal);
+	}
+
+	@Override
+	public double distanceFromCamera(final V3 ray, double raylen2) {
+		final double d = V3.dot(ray, normal);
+
+		return d != 0 ? cameraDistance / d : Double.MAX_VALUE;
+	}
+
+	@Override
+	public void hit(V3 p, V3 ray, V3 light, double t, TraceResult result) {
+		result.action = TraceResult.Action.ABSORBED;
+
+		//size of the pixel on the plane, stretched where the ray comes in flat
+		final double length = ray.length();
+		final double footprint = (result.rayWidth + result.raySpread * t * length) * length / Math.abs(V3.dot(ray, normal));
 
 		p.add(ray, t * ALMOST_ONE);
 		
@@ -75,27 +103,41 @@ public class Plane extends AbstractSceneObject {
 			final int py = (int) (p.y + 1024);
 			final int f = px + py & 1;
 
+			long color;
 			if (f == 0) {
 				double fractX = p.x - Math.floor(p.x);
 				double fractY = p.y - Math.floor(p.y);
 
-				final int tx = (int) (Textures.sand.getWidth() * fractX);
-				final int ty = (int) (Textures.sand.getHeight() * fractY);
+				final int level = sand.getLevel(sand.getWidth() * footprint);
+				final int tx = (int) (sand.getWidth(level) * fractX);
+				final int ty = (int) (sand.getHeight(level) * fractY);
 
-				result.color = RGB.spread(Textures.sand.getRGB(tx, ty));
+				color = RGB.spread(sand.getRGB(tx, ty, level));
+				result.textureReads++;
 			} else {
-				result.color = checker[f];
+				color = checker[f];
+			}
+
+			//squares smaller than two pixels fade to the average of both
+			if (footprint > 0.5) {
+				final long sandAverage = RGB.spread(sand.getRGB(0, 0, sand.getLevels() - 1));
+				result.textureReads++;
+				final long average = (sandAverage + checker[1]) >> 1 & 0xFF00FF00FFL;
+				final int fade = (int) Math.min(256, (footprint - 0.5) * 512);
+
+				color = RGB.shade(color, 256 - fade) + RGB.shade(average, fade);
 			}
+
+			result.color = color;
 		} else {
 			result.color = outside;
 		}
-		
-		return result;
 	}
 
 	@Override
 	public void translate(V3 move) {
 		pos.add(move);
+		moved();
 	}
 
 	@Override
@@ -103,6 +145,12 @@ public class Plane extends AbstractSceneObject {
 		return pos;
 	}
 
+	@Override
+	public boolean getBounds(V3 min, V3 max) {
+		//min and max only limit the checker pattern, the plane itself is infinite
+		return false;
+	}
+
 	V3 getNormal() {
 		return normal;
 	}
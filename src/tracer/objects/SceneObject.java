@@ -20,11 +20,49 @@ import tracer.V3;
 public interface SceneObject {
 	public void setMaterial(Material material);
 
+	public Material getMaterial();
+
+	/**
+	 * @return true if rays hitting this object may be reflected
+	 */
+	public boolean isReflective();
+
 	public double distanceToIntersection(V3 camera, V3 ray, double raylen2);
 
-	public TraceResult hit(V3 camera, V3 ray, V3 light, double t);
+	/**
+	 * Caches terms that only depend on the camera. Called once per frame,
+	 * before any primary ray is traced.
+	 */
+	public void prepare(V3 camera);
+
+	/**
+	 * Same as distanceToIntersection() for a ray starting at the camera
+	 * last given to prepare().
+	 */
+	public double distanceFromCamera(V3 ray, double raylen2);
+
+	/**
+	 * @return true if the ray hits this object between camera and
+	 *         maxDistance, in units of the ray length
+	 */
+	public boolean occludes(V3 camera, V3 ray, double raylen2, double maxDistance);
+
+	/**
+	 * Moves camera to the hit point and fills in the result. The result is
+	 * reused for every ray, don't keep references to it.
+	 */
+	public void hit(V3 camera, V3 ray, V3 light, double t, TraceResult result);
 
 	public void translate(V3 move);
 
+	public void setMoveListener(MoveListener listener);
+
 	public V3 getPos();
+
+	/**
+	 * Sets min and max to the axis aligned bounds of the object.
+	 * 
+	 * @return false if the object is unbounded, e.g. an infinite plane
+	 */
+	public boolean getBounds(V3 min, V3 max);
 }
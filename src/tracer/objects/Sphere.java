@@ -18,30 +18,36 @@ import tracer.V3;
  * @author Hj. Malthaner
  */
 public class Sphere extends AbstractSceneObject {
+	private double radius;
 	private double radiusSquared;
 	private V3 pos;
 
+	//camera minus centre and its squared distance to the surface, see prepare()
+	private double cameraX;
+	private double cameraY;
+	private double cameraZ;
+	private double cameraToEdge;
+
 	public Sphere(V3 pos, double rad) {
 		super();
 
 		this.pos = pos;
+		radius = rad;
 		radiusSquared = rad * rad;
 	}
 
 	@Override
 	public double distanceToIntersection(final V3 camera, final V3 ray, final double raylen2) {
-		double px = (camera.x - pos.x);
-		double py = (camera.y - pos.y);
-		double pz = (camera.z - pos.z);
-		
-		V3 cameraToObjectPosition = new V3(px, py, pz);
+		final double px = (camera.x - pos.x);
+		final double py = (camera.y - pos.y);
+		final double pz = (camera.z - pos.z);
 
-		final double projection = V3.dot(cameraToObjectPosition, ray);
+		final double projection = V3.dot(px, py, pz, ray);
 		
 		final double projectionSquared = projection * projection;
 		
 		final double lengthOfRaySquared = ray.length2();
-		final double lengthOfCameraToObjectSquared = cameraToObjectPosition.length2();
+		final double lengthOfCameraToObjectSquared = px * px + py * py + pz * pz;
 
 		final double distanceToEdgeOfObject = lengthOfCameraToObjectSquared - radiusSquared;
 		
@@ -69,31 +75,56 @@ public class Sphere extends AbstractSceneObject {
 	}
 
 	@Override
-	public TraceResult hit(V3 camera, V3 ray, V3 light, final double t) {
-		camera.add(ray, t * ALMOST_ONE);
+	public void prepare(V3 camera) {
+		super.prepare(camera);
+
+		cameraX = (camera.x - pos.x);
+		cameraY = (camera.y - pos.y);
+		cameraZ = (camera.z - pos.z);
+		cameraToEdge = cameraX * cameraX + cameraY * cameraY + cameraZ * cameraZ - radiusSquared;
+	}
+
+	@Override
+	public double distanceFromCamera(final V3 ray, final double raylen2) {
+		final double projection = V3.dot(cameraX, cameraY, cameraZ, ray);
+		final double lengthOfRaySquared = ray.length2();
+
+		final double disk = projection * projection - lengthOfRaySquared * cameraToEdge;
 
-		V3 normal = V3.make(camera).sub(pos);
+		if (disk < 0) {
+			return Double.MAX_VALUE;
+		}
 
-		TraceResult result = new TraceResult();
+		final double root = Math.sqrt(disk);
+		final double t1 = (-projection - root);
+		final double t = t1 < 0 ? (-projection + root) : t1;
+
+		return t / lengthOfRaySquared;
+	}
+
+	@Override
+	public void hit(V3 camera, V3 ray, V3 light, final double t, TraceResult result) {
+		camera.add(ray, t * ALMOST_ONE);
+
+		V3 normal = result.normal.set(camera).sub(pos);
 		
 		if (material.reflection > 0) {
-			V3 nextRay = new V3(ray);
+			V3 nextRay = result.nextRay.set(ray);
 			reflect(nextRay, normal);
 			
 			result.action = TraceResult.Action.REFLECTED;
-			result.nextRay = nextRay;
 		} else {
-			V3 lv = new V3(light);
+			V3 lv = result.lightVector.set(light);
 			lv.sub(camera);
 
-			final int phong = phong(lv, normal, ray);
+			final int phong = phong(lv, normal, ray, result.reflect);
 			result.color = RGB.shade(material.color, phong);
 			result.action = TraceResult.Action.ABSORBED;
 		}
+	}
 
-		V3.put(normal);
-		
-		return result;
+	public double getRadiusSquared() {
+		return radiusSquared;
 	}
 
 	@Override
@@ -104,5 +135,13 @@ public class Sphere extends AbstractSceneObject {
 	@Override
 	public void translate(V3 v) {
 		pos.add(v);
+		moved();
+	}
+
+	@Override
+	public boolean getBounds(V3 min, V3 max) {
+		min.set(pos.x - radius, pos.y - radius, pos.z - radius);
+		max.set(pos.x + radius, pos.y + radius, pos.z + radius);
+		return true;
 	}
 }
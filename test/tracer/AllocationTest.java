@@ -0,0 +1,96 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import tracer.objects.Billboard;
+import tracer.objects.Heightfield;
+import tracer.objects.Material;
+
+/**
+ * Traces the demo scene in each mode and checks that the worker threads
+ * allocate nothing once warmed up. The build runs this with
+ * -XX:TieredStopAtLevel=1, see AllocationCheck.
+ */
+public class AllocationTest {
+	private static final int FRAMES = 10;
+
+	@ParameterizedTest
+	@ValueSource(strings = { "default", "packets", "wavefront", "gbuffer", "incremental", "checkerboard",
+			"aa", "target-ms", "no-binning", "terrain", "forest" })
+	public void workersDontAllocate(String mode) throws IOException {
+		final Scene scene = new Scene();
+		if (mode.equals("terrain")) {
+			final Heightfield terrain = new Heightfield(Heightfield.generate(65, 6, 1), 65, 65, new V3(-40, 4, 0), 1.25);
+			terrain.setMaterial(new Material(0x779944, 0));
+			terrain.setTexture(Textures.fromFile(new File("resources/greenland/ground_0.jpg")), 4);
+			scene.add(terrain);
+		} else if (mode.equals("forest")) {
+			plantForest(scene, 10);
+		}
+
+		final View view = new View();
+		final TracerCoordinator tracer = new TracerCoordinator(new FrameBuffer(160, 120), scene, view, 2, 16);
+		tracer.setPacketTracing(mode.equals("packets"));
+		tracer.setWavefront(mode.equals("wavefront"));
+		tracer.setGBuffer(mode.equals("gbuffer"));
+		tracer.setIncremental(mode.equals("incremental"));
+		tracer.setCheckerboard(mode.equals("checkerboard"));
+		tracer.setAntialiasing(mode.equals("aa") ? 2 : 0);
+		tracer.setTargetFrameMillis(mode.equals("target-ms") ? 0.1 : 0);
+		tracer.setTileBinning(!mode.equals("no-binning"));
+		Textures.getCache().preload();
+
+		//the g-buffer is only reused while just the light moves
+		final boolean lightOnly = mode.equals("gbuffer");
+		final Runnable frame = new Runnable() {
+			@Override
+			public void run() {
+				if (lightOnly) {
+					scene.animateLight();
+				} else {
+					scene.animate();
+				}
+				view.animate();
+				tracer.nextFrame();
+			}
+		};
+
+		long allocated = 0;
+		try {
+			final AllocationCheck check = new AllocationCheck(tracer);
+			check.warmUp(frame);
+
+			for (int i = 0; i < FRAMES; i++) {
+				allocated += check.measure(frame);
+			}
+		} finally {
+			tracer.close();
+		}
+		assertEquals(0, allocated, "bytes allocated by the workers in " + mode + " mode");
+	}
+
+	private static void plantForest(Scene scene, int count) throws IOException {
+		final SpriteAtlas atlas = SpriteAtlas.load(new File("resources/greenland/tiles.tica.zip"));
+		final ArrayList<SpriteAtlas.Sprite> plants = atlas.findSprites("type:plant");
+
+		final Random random = new Random(1);
+		for (int i = 0; i < count; i++) {
+			final SpriteAtlas.Sprite sprite = plants.get(random.nextInt(plants.size()));
+			scene.add(new Billboard(atlas, sprite, new V3(random.nextDouble() * 40 - 20, random.nextDouble() * 40 - 5, 0), 0.01));
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class ResolutionControllerTest {
+	private static final long TARGET = 16000000;
+
+	@Test
+	public void resolutionRecoversWhenTheLoadDrops() {
+		final ResolutionController controller = new ResolutionController(TARGET);
+
+		for (int i = 0; i < 100; i++) {
+			controller.frameDone(4 * TARGET);
+		}
+		assertEquals(ResolutionController.MAX_BLOCK_SIZE, controller.getBlockSize());
+
+		for (int i = 0; i < 100; i++) {
+			controller.frameDone(TARGET / 8);
+		}
+		assertEquals(1, controller.getBlockSize());
+	}
+
+	@Test
+	public void fastFramesKeepTheFullResolution() {
+		final ResolutionController controller = new ResolutionController(TARGET);
+
+		for (int i = 0; i < 100; i++) {
+			controller.frameDone(TARGET / 2);
+		}
+		assertEquals(1, controller.getBlockSize());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class TextureCacheTest {
+	private static final int WIDTH = 300;
+	private static final int HEIGHT = 200;
+
+	@Test
+	public void pagesHoldTheImageAndItsMipLevels() throws IOException {
+		final BufferedImage image = createImage();
+		final TextureCache cache = new TextureCache(Textures.DEFAULT_BUDGET);
+		final Texture texture = cache.create("image", source(image, new AtomicInteger()));
+
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				assertEquals(image.getRGB(x, y), texture.getRGB(x, y), "texel " + x + "," + y);
+			}
+		}
+
+		for (int y = 0; y < HEIGHT / 2; y++) {
+			for (int x = 0; x < WIDTH / 2; x++) {
+				final int a = image.getRGB(2 * x, 2 * y);
+				final int b = image.getRGB(2 * x + 1, 2 * y);
+				final int c = image.getRGB(2 * x, 2 * y + 1);
+				final int d = image.getRGB(2 * x + 1, 2 * y + 1);
+				for (int shift = 0; shift < 32; shift += 8) {
+					final int sum = (a >>> shift & 0xFF) + (b >>> shift & 0xFF) + (c >>> shift & 0xFF) + (d >>> shift & 0xFF);
+					assertEquals((sum + 2) >> 2, texture.getRGB(x, y, 1) >>> shift & 0xFF, "level 1 texel " + x + "," + y);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void missesDontDecodeAgain() throws IOException {
+		final BufferedImage image = createImage();
+		final AtomicInteger opens = new AtomicInteger();
+		final TextureCache cache = new TextureCache(4 * TextureCache.PAGE_BYTES);
+		final Texture texture = cache.create("image", source(image, opens));
+
+		texture.getRGB(0, 0);
+		final int decoded = opens.get();
+
+		//more pages than fit the budget, in every order
+		final Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			final int x = random.nextInt(WIDTH);
+			final int y = random.nextInt(HEIGHT);
+			assertEquals(image.getRGB(x, y), texture.getRGB(x, y));
+			assertTrue(cache.getResidentBytes() <= cache.getBudget());
+		}
+
+		assertTrue(cache.getEvictions() > 0);
+		assertEquals(decoded, opens.get(), "times the image was opened");
+	}
+
+	private static BufferedImage createImage() {
+		final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		final Random random = new Random(42);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	private static Texture.Source source(BufferedImage image, final AtomicInteger opens) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		final byte[] encoded = out.toByteArray();
+
+		return new Texture.Source() {
+			@Override
+			public InputStream open() {
+				opens.incrementAndGet();
+				return new ByteArrayInputStream(encoded);
+			}
+		};
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+public class TracerCoordinatorTest {
+	@Test
+	public void closeStopsTheWorkersAndUnregistersTheMetrics() throws MalformedObjectNameException {
+		final int before = countMetrics();
+		final TracerCoordinator tracer = new TracerCoordinator(new FrameBuffer(64, 48), new Scene(), new View(), 2, 16);
+		assertEquals(before + 1, countMetrics());
+
+		tracer.nextFrame();
+		tracer.close();
+
+		assertEquals(before, countMetrics());
+		final long[] workerIds = tracer.getWorkerIds();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			for (long id : workerIds) {
+				assertFalse(thread.getId() == id && thread.isAlive(), thread.getName() + " still runs");
+			}
+		}
+	}
+
+	@Test
+	public void waitingForAFrameDoesntLowerTheResolution() throws InterruptedException {
+		final TracerCoordinator tracer = new TracerCoordinator(new FrameBuffer(64, 48), new Scene(), new View(), 2, 16);
+		try {
+			//the first frames are slow while classes load
+			for (int i = 0; i < 20; i++) {
+				tracer.nextFrame();
+			}
+			tracer.setTargetFrameMillis(16);
+
+			//like the window demo, which only awaits a frame when its next one is due
+			for (int i = 0; i < 30; i++) {
+				tracer.startFrame();
+				Thread.sleep(40);
+				tracer.awaitFrame();
+			}
+			assertEquals(1, tracer.getBlockSize());
+			assertTrue(tracer.getMetrics().getLastFrameMillis() < 40);
+		} finally {
+			tracer.close();
+		}
+	}
+
+	private static int countMetrics() throws MalformedObjectNameException {
+		return ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("tracer:type=RenderMetrics,*"), null).size();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of the SimpleRay project
+ *
+ * Published as part of the FreeMapper project:
+ * http://sourceforge.net/projects/freemapper/
+ */
+package tracer.objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import tracer.V3;
+
+/**
+ * Compares the pyramid walk of Heightfield with intersecting every
+ * triangle of the grid.
+ */
+public class HeightfieldTest {
+	private static final int RAYS = 20000;
+
+	private static final V3 ORIGIN = new V3(-3, 1, 0.5);
+	private static final double CELL_SIZE = 0.75;
+
+	@Test
+	public void randomGridsMatchBruteForce() {
+		final Random random = new Random(1);
+		for (int grid = 0; grid < 20; grid++) {
+			final int samplesX = 2 + random.nextInt(30);
+			final int samplesY = 2 + random.nextInt(30);
+			final float[] heights = new float[samplesX * samplesY];
+			for (int i = 0; i < heights.length; i++) {
+				heights[i] = (float) (random.nextDouble() * 4);
+			}
+			check(heights, samplesX, samplesY, random);
+		}
+	}
+
+	@Test
+	public void cliffsMatchBruteForce() {
+		final Random random = new Random(2);
+		for (int grid = 0; grid < 20; grid++) {
+			final int samplesX = 8 + random.nextInt(30);
+			final int samplesY = 8 + random.nextInt(30);
+			final int edge = 1 + random.nextInt(samplesX - 2);
+
+			//a plateau next to low ground, along x or diagonal
+			final boolean diagonal = random.nextBoolean();
+			final float[] heights = new float[samplesX * samplesY];
+			for (int y = 0; y < samplesY; y++) {
+				for (int x = 0; x < samplesX; x++) {
+					final boolean high = diagonal ? x + y > edge + samplesY / 2 : x >= edge;
+					heights[y * samplesX + x] = (float) ((high ? 10 : 0) + random.nextDouble() * 0.5);
+				}
+			}
+			check(heights, samplesX, samplesY, random);
+		}
+	}
+
+	@Test
+	public void descendingRaysStopAtTheCliff() {
+		//low ground up to x = 8, a plateau 10 high from x = 9 on
+		final int samples = 17;
+		final float[] heights = new float[samples * samples];
+		for (int y = 0; y < samples; y++) {
+			for (int x = 9; x < samples; x++) {
+				heights[y * samples + x] = 10;
+			}
+		}
+		final Heightfield field = new Heightfield(heights, samples, samples, new V3(), 1);
+
+		//from above the low ground down onto the wall, it is hit at x = 8.5, z = 5
+		for (double y = 0.5; y < 15.5; y += 0.7) {
+			final V3 camera = new V3(2, y, 8);
+			final V3 ray = new V3(6.5, 0.3, -3);
+			final double hit = field.distanceToIntersection(new V3(camera), new V3(ray), ray.length2());
+			assertEquals(1, hit, 1E-9);
+
+			for (double maxDistance = 0.05; maxDistance < 1.5; maxDistance += 0.1) {
+				assertEquals(maxDistance > hit, field.occludes(new V3(camera), new V3(ray), ray.length2(), maxDistance),
+						"occluded before " + maxDistance);
+			}
+		}
+	}
+
+	@Test
+	public void generatedTerrainMatchesBruteForce() {
+		final Random random = new Random(3);
+		check(Heightfield.generate(65, 6, 1), 65, 65, random);
+	}
+
+	private static void check(float[] heights, int samplesX, int samplesY, Random random) {
+		final Heightfield field = new Heightfield(heights, samplesX, samplesY, ORIGIN, CELL_SIZE);
+		final double width = (samplesX - 1) * CELL_SIZE;
+		final double depth = (samplesY - 1) * CELL_SIZE;
+
+		for (int i = 0; i < RAYS; i++) {
+			final V3 camera;
+			final V3 ray = new V3(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1);
+			ray.mul(width + depth);
+
+			if (random.nextBoolean()) {
+				//like a shadow ray, from just above a point of the surface, often downwards
+				final double x = random.nextDouble() * (samplesX - 1);
+				final double y = random.nextDouble() * (samplesY - 1);
+				camera = new V3(ORIGIN.x + x * CELL_SIZE, ORIGIN.y + y * CELL_SIZE, ORIGIN.z + surfaceAt(heights, samplesX, x, y) + 1E-6);
+			} else {
+				camera = new V3(ORIGIN.x - width * 0.5 + random.nextDouble() * width * 2,
+						ORIGIN.y - depth * 0.5 + random.nextDouble() * depth * 2,
+						ORIGIN.z - 2 + random.nextDouble() * 16);
+			}
+
+			final double expected = bruteForce(heights, samplesX, samplesY, camera, ray);
+			final double actual = field.distanceToIntersection(new V3(camera), new V3(ray), ray.length2());
+			if (expected == Double.MAX_VALUE) {
+				assertEquals(Double.MAX_VALUE, actual, "hit where there is none, ray " + i);
+			} else {
+				assertEquals(expected, actual, 1E-6 * Math.max(1, expected), "distance of ray " + i);
+			}
+
+			//shadow rays of every length, away from the hit itself
+			for (int k = 0; k < 4; k++) {
+				final double maxDistance = random.nextDouble() * 1.5;
+				if (Math.abs(maxDistance - expected) < 1E-6) {
+					continue;
+				}
+				final boolean occluded = field.occludes(new V3(camera), new V3(ray), ray.length2(), maxDistance);
+				if (occluded != expected < maxDistance) {
+					fail("ray " + i + " from " + camera + " along " + ray + " with hit at " + expected + " is "
+							+ (occluded ? "" : "not ") + "occluded before " + maxDistance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the nearest hit over all triangles, or Double.MAX_VALUE
+	 */
+	private static double bruteForce(float[] heights, int samplesX, int samplesY, V3 camera, V3 ray) {
+		final double gx = (camera.x - ORIGIN.x) / CELL_SIZE;
+		final double gy = (camera.y - ORIGIN.y) / CELL_SIZE;
+		final double oz = camera.z - ORIGIN.z;
+		final double dx = ray.x / CELL_SIZE;
+		final double dy = ray.y / CELL_SIZE;
+		final double dz = ray.z;
+		final double e = 1E-9;
+
+		double best = Double.MAX_VALUE;
+		for (int y = 0; y < samplesY - 1; y++) {
+			for (int x = 0; x < samplesX - 1; x++) {
+				final int s = y * samplesX + x;
+				final double h00 = heights[s];
+				final double h10 = heights[s + 1];
+				final double h01 = heights[s + samplesX];
+				final double h11 = heights[s + samplesX + 1];
+				final double u = gx - x;
+				final double v = gy - y;
+
+				for (int triangle = 0; triangle < 2; triangle++) {
+					final double b = triangle == 0 ? h10 - h00 : h11 - h01;
+					final double c = triangle == 0 ? h11 - h10 : h01 - h00;
+					final double denominator = dz - b * dx - c * dy;
+					if (denominator == 0) {
+						continue;
+					}
+
+					final double t = (h00 + b * u + c * v - oz) / denominator;
+					final double pu = u + dx * t;
+					final double pv = v + dy * t;
+					final boolean inside = pu >= -e && pu <= 1 + e && pv >= -e && pv <= 1 + e
+							&& (triangle == 0 ? pu >= pv - e : pv >= pu - e);
+					if (inside && t > 1E-9 && t < best) {
+						best = t;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private static double surfaceAt(float[] heights, int samplesX, double gx, double gy) {
+		final int x = (int) gx;
+		final int y = (int) gy;
+		final double u = gx - x;
+		final double v = gy - y;
+		final int s = y * samplesX + x;
+
+		if (u >= v) {
+			return heights[s] + (heights[s + 1] - heights[s]) * u + (heights[s + samplesX + 1] - heights[s + 1]) * v;
+		}
+		return heights[s] + (heights[s + samplesX + 1] - heights[s + samplesX]) * u + (heights[s + samplesX] - heights[s]) * v;
+	}
+}